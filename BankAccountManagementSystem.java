@@ -1,20 +1,130 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+final class Money {
+    static final long CENTS_PER_UNIT = 100;
+    private static final double MAX_AMOUNT = (double) (Long.MAX_VALUE / CENTS_PER_UNIT);
+    
+    private Money() {
+    }
+    
+    static long toCents(double amount) {
+        if (Double.isNaN(amount) || Math.abs(amount) > MAX_AMOUNT) {
+            throw new IllegalArgumentException("Amount out of range: " + amount);
+        }
+        return Math.round(amount * CENTS_PER_UNIT);
+    }
+    
+    static double toDouble(long cents) {
+        return (double) cents / CENTS_PER_UNIT;
+    }
+    
+    // Parses a plain decimal such as "12", "12.5" or "12.50" exactly, without
+    // going through double.
+    static long parseCents(CharSequence text, int start, int end) {
+        long units = 0;
+        long fraction = 0;
+        int fractionDigits = -1;
+        if (start >= end) {
+            throw new NumberFormatException("Empty amount");
+        }
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (c >= '0' && c <= '9') {
+                if (fractionDigits < 0) {
+                    if (units > (Long.MAX_VALUE / CENTS_PER_UNIT - 9) / 10) {
+                        throw new NumberFormatException("Amount out of range: " + text.subSequence(start, end));
+                    }
+                    units = units * 10 + (c - '0');
+                } else if (++fractionDigits <= 2) {
+                    fraction = fraction * 10 + (c - '0');
+                } else {
+                    throw new NumberFormatException("Amount has more than two decimals: " + text.subSequence(start, end));
+                }
+            } else {
+                throw new NumberFormatException("Invalid amount: " + text.subSequence(start, end));
+            }
+        }
+        if (fractionDigits == 1) {
+            fraction *= 10;
+        }
+        return units * CENTS_PER_UNIT + fraction;
+    }
+}
 
 class Transaction {
-    private double amount;
+    private long amountCents;
     private String type;
-    private Date timestamp;
+    private long timestampMillis;
     
     public Transaction(double amount, String type) {
-        this.amount = amount;
+        this(Money.toCents(amount), type, System.currentTimeMillis());
+    }
+    
+    private Transaction(long amountCents, String type, long timestampMillis) {
+        this.amountCents = amountCents;
         this.type = type;
-        this.timestamp = new Date();
+        this.timestampMillis = timestampMillis;
+    }
+    
+    static Transaction of(long amountCents, String type, long timestampMillis) {
+        return new Transaction(amountCents, type, timestampMillis);
     }
     
     public double getAmount() {
-        return amount;
+        return Money.toDouble(amountCents);
+    }
+    
+    public long getAmountCents() {
+        return amountCents;
     }
     
     public String getType() {
@@ -22,32 +132,420 @@ class Transaction {
     }
     
     public Date getTimestamp() {
-        return timestamp;
+        return new Date(timestampMillis);
+    }
+    
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+    
+    @Override
+    public String toString() {
+        return type + ": $" + getAmount() + " on " + getTimestamp();
+    }
+}
+
+class TransactionStats {
+    static final TransactionStats EMPTY = new TransactionStats(0, 0, 0, 0);
+    
+    private final long count;
+    private final long totalCents;
+    private final long minCents;
+    private final long maxCents;
+    
+    TransactionStats(long count, long totalCents, long minCents, long maxCents) {
+        this.count = count;
+        this.totalCents = totalCents;
+        this.minCents = minCents;
+        this.maxCents = maxCents;
+    }
+    
+    public long getCount() {
+        return count;
+    }
+    
+    public long getTotalCents() {
+        return totalCents;
+    }
+    
+    public double getTotal() {
+        return Money.toDouble(totalCents);
+    }
+    
+    public double getMin() {
+        return Money.toDouble(minCents);
+    }
+    
+    public double getMax() {
+        return Money.toDouble(maxCents);
+    }
+    
+    public double getAverage() {
+        return count == 0 ? 0.0 : Money.toDouble(totalCents) / count;
     }
     
     @Override
     public String toString() {
-        return type + ": $" + amount + " on " + timestamp;
+        return "count=" + count + ", total=$" + getTotal() + ", min=$" + getMin() + ", max=$" + getMax();
+    }
+}
+
+class TransactionLog {
+    static final byte DEPOSIT = 0;
+    static final byte WITHDRAWAL = 1;
+    static final byte TRANSFER_IN = 2;
+    static final byte TRANSFER_OUT = 3;
+    
+    static final int TYPE_COUNT = 4;
+    
+    private static final String[] TYPE_NAMES = {"DEPOSIT", "WITHDRAWAL", "TRANSFER_IN", "TRANSFER_OUT"};
+    private static final int STAT_FIELDS = 4;
+    private static final long[] NO_LONGS = new long[0];
+    private static final byte[] NO_BYTES = new byte[0];
+    
+    private long[] timestamps = NO_LONGS;
+    private long[] amounts = NO_LONGS;
+    private byte[] types = NO_BYTES;
+    private long[] versions = NO_LONGS;
+    private long[] balances = NO_LONGS;
+    private int size;
+    private long[] stats;
+    
+    TransactionLog() {
+    }
+    
+    TransactionLog(long[] timestamps, long[] amounts, byte[] types, int size) {
+        this.timestamps = timestamps;
+        this.amounts = amounts;
+        this.types = types;
+        this.versions = new long[size];
+        this.balances = new long[size];
+        this.size = size;
+        long balance = 0;
+        for (int i = 0; i < size; i++) {
+            balance += isCredit(types[i]) ? amounts[i] : -amounts[i];
+            balances[i] = balance;
+            accumulate(amounts[i], types[i]);
+        }
+    }
+    
+    static boolean isCredit(byte type) {
+        return type == DEPOSIT || type == TRANSFER_IN;
+    }
+    
+    static String typeName(byte type) {
+        return TYPE_NAMES[type];
+    }
+    
+    static byte typeCode(String typeName) {
+        for (byte type = 0; type < TYPE_COUNT; type++) {
+            if (TYPE_NAMES[type].equals(typeName)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown transaction type: " + typeName);
+    }
+    
+    TransactionStats statistics(byte type) {
+        if (stats == null || stats[type * STAT_FIELDS] == 0) {
+            return TransactionStats.EMPTY;
+        }
+        int base = type * STAT_FIELDS;
+        return new TransactionStats(stats[base], stats[base + 1], stats[base + 2], stats[base + 3]);
+    }
+    
+    // Running count, sum, min and max per type, so statistics never rescan.
+    private void accumulate(long amountCents, byte type) {
+        if (stats == null) {
+            stats = new long[TYPE_COUNT * STAT_FIELDS];
+        }
+        int base = type * STAT_FIELDS;
+        boolean first = stats[base] == 0;
+        stats[base]++;
+        stats[base + 1] += amountCents;
+        stats[base + 2] = first ? amountCents : Math.min(stats[base + 2], amountCents);
+        stats[base + 3] = first ? amountCents : Math.max(stats[base + 3], amountCents);
+    }
+    
+    int size() {
+        return size;
+    }
+    
+    // Versions come from the owning bank's clock and only grow, which lets
+    // a snapshot find its cut-off by binary search.
+    void append(long timestampMillis, long amountCents, byte type, long version) {
+        if (size == types.length) {
+            int capacity = Math.max(4, size + (size >> 1));
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+            types = Arrays.copyOf(types, capacity);
+            versions = Arrays.copyOf(versions, capacity);
+            balances = Arrays.copyOf(balances, capacity);
+        }
+        
+        // Keep timestamps non-decreasing even if the wall clock steps back,
+        // so range scans can binary search.
+        if (size > 0 && timestampMillis < timestamps[size - 1]) {
+            timestampMillis = timestamps[size - 1];
+        }
+        long previousBalance = size == 0 ? 0 : balances[size - 1];
+        timestamps[size] = timestampMillis;
+        amounts[size] = amountCents;
+        types[size] = type;
+        versions[size] = version;
+        balances[size] = previousBalance + (isCredit(type) ? amountCents : -amountCents);
+        size++;
+        accumulate(amountCents, type);
+    }
+    
+    // Views share the backing arrays: entries below size are never rewritten,
+    // and growth copies into new arrays, so a view stays valid without copying.
+    View view() {
+        return new View(timestamps, amounts, types, 0, size);
+    }
+    
+    View viewBetween(long fromMillis, long toMillis) {
+        int from = lowerBound(timestamps, fromMillis);
+        int to = Math.max(from, lowerBound(timestamps, toMillis));
+        return new View(timestamps, amounts, types, from, to - from);
+    }
+    
+    // The history as it stood before the given version was written.
+    View viewBefore(long version) {
+        return new View(timestamps, amounts, types, 0, lowerBound(versions, version));
+    }
+    
+    long balanceBefore(long version) {
+        int end = lowerBound(versions, version);
+        return end == 0 ? 0 : balances[end - 1];
+    }
+    
+    private int lowerBound(long[] column, long key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (column[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    static final class View extends AbstractList<Transaction> implements RandomAccess {
+        private final long[] timestamps;
+        private final long[] amounts;
+        private final byte[] types;
+        private final int offset;
+        private final int size;
+        
+        private View(long[] timestamps, long[] amounts, byte[] types, int offset, int size) {
+            this.timestamps = timestamps;
+            this.amounts = amounts;
+            this.types = types;
+            this.offset = offset;
+            this.size = size;
+        }
+        
+        @Override
+        public Transaction get(int index) {
+            return Transaction.of(getAmountCents(index), typeName(getTypeCode(index)), getTimestampMillis(index));
+        }
+        
+        @Override
+        public int size() {
+            return size;
+        }
+        
+        long getTimestampMillis(int index) {
+            return timestamps[offset + Objects.checkIndex(index, size)];
+        }
+        
+        long getAmountCents(int index) {
+            return amounts[offset + Objects.checkIndex(index, size)];
+        }
+        
+        byte getTypeCode(int index) {
+            return types[offset + Objects.checkIndex(index, size)];
+        }
     }
 }
 
 class InsufficientFundsException extends Exception {
+    static final InsufficientFundsException WITHDRAWAL_DECLINED =
+            new InsufficientFundsException("Insufficient funds for withdrawal", false);
+    static final InsufficientFundsException TRANSFER_DECLINED =
+            new InsufficientFundsException("Insufficient funds for transfer", false);
+    
     public InsufficientFundsException(String message) {
         super(message);
     }
+    
+    // Shared instances carry no stack trace and no suppressed exceptions, so
+    // throwing one costs no more than a normal return.
+    private InsufficientFundsException(String message, boolean writableStackTrace) {
+        super(message, null, false, writableStackTrace);
+    }
+}
+
+class BankStatistics {
+    private static final int MINUTE_BUCKETS = 60;
+    private static final long MILLIS_PER_MINUTE = 60_000;
+    
+    private final LongAdder balanceCents = new LongAdder();
+    private final LongAdder[] counts = new LongAdder[TransactionLog.TYPE_COUNT];
+    private final LongAdder[] totals = new LongAdder[TransactionLog.TYPE_COUNT];
+    private final LongAccumulator[] minimums = new LongAccumulator[TransactionLog.TYPE_COUNT];
+    private final LongAccumulator[] maximums = new LongAccumulator[TransactionLog.TYPE_COUNT];
+    private final MinuteBucket[] buckets = new MinuteBucket[MINUTE_BUCKETS * TransactionLog.TYPE_COUNT];
+    
+    BankStatistics() {
+        for (int type = 0; type < TransactionLog.TYPE_COUNT; type++) {
+            counts[type] = new LongAdder();
+            totals[type] = new LongAdder();
+            minimums[type] = new LongAccumulator(Math::min, Long.MAX_VALUE);
+            maximums[type] = new LongAccumulator(Math::max, Long.MIN_VALUE);
+        }
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new MinuteBucket();
+        }
+    }
+    
+    void record(byte type, long amountCents, long timestampMillis) {
+        counts[type].increment();
+        totals[type].add(amountCents);
+        minimums[type].accumulate(amountCents);
+        maximums[type].accumulate(amountCents);
+        if (type == TransactionLog.DEPOSIT || type == TransactionLog.TRANSFER_IN) {
+            balanceCents.add(amountCents);
+        } else {
+            balanceCents.add(-amountCents);
+        }
+        
+        long minute = timestampMillis / MILLIS_PER_MINUTE;
+        buckets[type * MINUTE_BUCKETS + (int) (minute % MINUTE_BUCKETS)].record(minute, amountCents);
+    }
+    
+    void addBalance(long amountCents) {
+        balanceCents.add(amountCents);
+    }
+    
+    long totalBalanceCents() {
+        return balanceCents.sum();
+    }
+    
+    TransactionStats statistics(byte type) {
+        long count = counts[type].sum();
+        if (count == 0) {
+            return TransactionStats.EMPTY;
+        }
+        return new TransactionStats(count, totals[type].sum(), minimums[type].get(), maximums[type].get());
+    }
+    
+    // Oldest minute first, ending with the minute containing nowMillis.
+    List<TransactionStats> minuteRollups(byte type, int minutes, long nowMillis) {
+        if (minutes <= 0 || minutes > MINUTE_BUCKETS) {
+            throw new IllegalArgumentException("Minutes must be between 1 and " + MINUTE_BUCKETS);
+        }
+        long currentMinute = nowMillis / MILLIS_PER_MINUTE;
+        List<TransactionStats> rollups = new ArrayList<>(minutes);
+        for (long minute = currentMinute - minutes + 1; minute <= currentMinute; minute++) {
+            rollups.add(buckets[type * MINUTE_BUCKETS + (int) (minute % MINUTE_BUCKETS)].statistics(minute));
+        }
+        return rollups;
+    }
+    
+    // Lock-free, so a record racing a rollover can be misattributed: one
+    // for the old minute that read the bucket just before the rollover
+    // lands in the new minute, and one for the new minute that lands just
+    // before the reset is cleared by it. Both need a writer of the next
+    // minute to arrive within a few instructions of it, and only the
+    // per-minute rollups are affected; the running totals are exact.
+    private static final class MinuteBucket {
+        private final AtomicLong minute = new AtomicLong(-1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator minimum = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        private final LongAccumulator maximum = new LongAccumulator(Math::max, Long.MIN_VALUE);
+        
+        void record(long minute, long amountCents) {
+            long current = this.minute.get();
+            // A bucket is reused once an hour, so only the writer that wins
+            // the move to a new minute pays for the reset.
+            while (current < minute) {
+                if (this.minute.compareAndSet(current, minute)) {
+                    count.reset();
+                    total.reset();
+                    minimum.reset();
+                    maximum.reset();
+                    current = minute;
+                } else {
+                    current = this.minute.get();
+                }
+            }
+            // Older minutes (replayed history, or a writer that lost a race
+            // with the next rollover) are no longer in this bucket.
+            if (current == minute) {
+                count.increment();
+                total.add(amountCents);
+                minimum.accumulate(amountCents);
+                maximum.accumulate(amountCents);
+            }
+        }
+        
+        TransactionStats statistics(long minute) {
+            if (this.minute.get() != minute || count.sum() == 0) {
+                return TransactionStats.EMPTY;
+            }
+            return new TransactionStats(count.sum(), total.sum(), minimum.get(), maximum.get());
+        }
+    }
 }
 
 class BankAccount {
+    static final long DECLINED = -1;
+    
     private String accountNumber;
     private String accountHolder;
-    private double balance;
-    private List<Transaction> transactionHistory;
+    private long balanceCents;
+    private TransactionLog transactionHistory;
+    private final Bank bank;
+    private final ReentrantLock lock;
+    private final int lockStripe;
+    private final MappedLedger ledger;
+    private final int ledgerSlot;
+    private final long creationVersion;
     
     public BankAccount(String accountNumber, String accountHolder) {
+        this(accountNumber, accountHolder, null, new ReentrantLock(), 0);
+    }
+    
+    BankAccount(String accountNumber, String accountHolder, Bank bank, ReentrantLock lock, int lockStripe) {
         this.accountNumber = accountNumber;
         this.accountHolder = accountHolder;
-        this.balance = 0.0;
-        this.transactionHistory = new ArrayList<>();
+        this.balanceCents = 0;
+        this.transactionHistory = new TransactionLog();
+        this.bank = bank;
+        this.lock = lock;
+        this.lockStripe = lockStripe;
+        this.ledger = null;
+        this.ledgerSlot = -1;
+        this.creationVersion = bank == null ? 0 : bank.nextVersion();
+    }
+    
+    // A flyweight over one slot of a mapped ledger: balance, holder and history
+    // all live in the mapped files, and the object itself is cheap to discard.
+    BankAccount(String accountNumber, Bank bank, ReentrantLock lock, int lockStripe, MappedLedger ledger,
+            int ledgerSlot) {
+        this.accountNumber = accountNumber;
+        this.bank = bank;
+        this.lock = lock;
+        this.lockStripe = lockStripe;
+        this.ledger = ledger;
+        this.ledgerSlot = ledgerSlot;
+        this.creationVersion = 0;
     }
     
     public String getAccountNumber() {
@@ -55,72 +553,2067 @@ class BankAccount {
     }
     
     public String getAccountHolder() {
+        if (accountHolder == null) {
+            accountHolder = ledger.holder(ledgerSlot);
+        }
         return accountHolder;
     }
     
-    public double getBalance() {
-        return balance;
+    public double getBalance() {
+        return Money.toDouble(getBalanceCents());
+    }
+    
+    public long getBalanceCents() {
+        lock.lock();
+        try {
+            return ledger != null ? ledger.balance(ledgerSlot) : balanceCents;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public void deposit(double amount) {
+        depositCents(Money.toCents(amount));
+    }
+    
+    public void depositCents(long amountCents) {
+        if (amountCents <= 0) {
+            throw new IllegalArgumentException("Deposit amount must be positive");
+        }
+        
+        long journalSequence = applyDeposit(amountCents);
+        if (bank != null) {
+            bank.awaitJournal(journalSequence);
+        }
+    }
+    
+    public void withdraw(double amount) throws InsufficientFundsException {
+        withdrawCents(Money.toCents(amount));
+    }
+    
+    public void withdrawCents(long amountCents) throws InsufficientFundsException {
+        if (amountCents <= 0) {
+            throw new IllegalArgumentException("Withdrawal amount must be positive");
+        }
+        
+        long journalSequence = applyWithdrawal(amountCents);
+        if (journalSequence == DECLINED) {
+            if (bank != null && bank.isStacklessDeclines()) {
+                throw InsufficientFundsException.WITHDRAWAL_DECLINED;
+            }
+            throw new InsufficientFundsException("Insufficient funds for withdrawal");
+        }
+        if (bank != null) {
+            bank.awaitJournal(journalSequence);
+        }
+    }
+    
+    public boolean tryWithdraw(double amount) {
+        return tryWithdrawCents(Money.toCents(amount));
+    }
+    
+    public boolean tryWithdrawCents(long amountCents) {
+        if (amountCents <= 0) {
+            throw new IllegalArgumentException("Withdrawal amount must be positive");
+        }
+        
+        long journalSequence = applyWithdrawal(amountCents);
+        if (journalSequence == DECLINED) {
+            return false;
+        }
+        if (bank != null) {
+            bank.awaitJournal(journalSequence);
+        }
+        return true;
+    }
+    
+    // Applies a validated deposit and returns its journal sequence without
+    // waiting for it to become durable, so batch callers can wait once.
+    // The change is checked, then journaled, then applied: if the append
+    // fails, memory still matches the journal.
+    long applyDeposit(long amountCents) {
+        lock.lock();
+        try {
+            long timestampMillis = System.currentTimeMillis();
+            checkCredit(amountCents);
+            long journalSequence = bank == null
+                    ? 0 : bank.journalEntry(BankJournal.DEPOSIT, accountNumber, amountCents, timestampMillis);
+            credit(amountCents, TransactionLog.DEPOSIT, timestampMillis, nextVersion());
+            return journalSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Like applyDeposit, returning DECLINED instead of throwing on insufficient funds.
+    long applyWithdrawal(long amountCents) {
+        lock.lock();
+        try {
+            long timestampMillis = System.currentTimeMillis();
+            if (!canDebit(amountCents)) {
+                return DECLINED;
+            }
+            long journalSequence = bank == null
+                    ? 0 : bank.journalEntry(BankJournal.WITHDRAWAL, accountNumber, amountCents, timestampMillis);
+            debit(amountCents, TransactionLog.WITHDRAWAL, timestampMillis, nextVersion());
+            return journalSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Callers must hold this account's lock. Throws ArithmeticException if
+    // the credit would overflow, before anything is journaled.
+    void checkCredit(long amountCents) {
+        Math.addExact(ledger != null ? ledger.balance(ledgerSlot) : balanceCents, amountCents);
+    }
+    
+    // Callers must hold this account's lock.
+    boolean canDebit(long amountCents) {
+        return amountCents <= (ledger != null ? ledger.balance(ledgerSlot) : balanceCents);
+    }
+    
+    // Callers must hold this account's lock.
+    void credit(long amountCents, byte type, long timestampMillis, long version) {
+        if (bank != null) {
+            bank.getStatisticsRecorder().record(type, amountCents, timestampMillis);
+        }
+        if (ledger != null) {
+            ledger.setBalance(ledgerSlot, Math.addExact(ledger.balance(ledgerSlot), amountCents));
+            ledger.append(ledgerSlot, timestampMillis, amountCents, type);
+            return;
+        }
+        
+        balanceCents = Math.addExact(balanceCents, amountCents);
+        transactionHistory.append(timestampMillis, amountCents, type, version);
+    }
+    
+    // Callers must hold this account's lock.
+    boolean debit(long amountCents, byte type, long timestampMillis, long version) {
+        if (ledger != null) {
+            long balance = ledger.balance(ledgerSlot);
+            if (amountCents > balance) {
+                return false;
+            }
+            ledger.setBalance(ledgerSlot, balance - amountCents);
+            ledger.append(ledgerSlot, timestampMillis, amountCents, type);
+            bank.getStatisticsRecorder().record(type, amountCents, timestampMillis);
+            return true;
+        }
+        
+        if (amountCents > balanceCents) {
+            return false;
+        }
+        
+        if (bank != null) {
+            bank.getStatisticsRecorder().record(type, amountCents, timestampMillis);
+        }
+        balanceCents -= amountCents;
+        transactionHistory.append(timestampMillis, amountCents, type, version);
+        return true;
+    }
+    
+    // Used only while a Bank is being restored, before the account is shared.
+    void restoreEntry(long timestampMillis, long amountCents, byte type) {
+        transactionHistory.append(timestampMillis, amountCents, type, nextVersion());
+        if (bank != null) {
+            bank.getStatisticsRecorder().record(type, amountCents, timestampMillis);
+        }
+    }
+    
+    void restoreBalance(long balanceCents) {
+        this.balanceCents = balanceCents;
+    }
+    
+    public List<Transaction> getTransactionHistory() {
+        lock.lock();
+        try {
+            return history().view();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public List<Transaction> getTransactionHistory(Date from, Date to) {
+        lock.lock();
+        try {
+            return history().viewBetween(from.getTime(), to.getTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private long nextVersion() {
+        return bank == null ? 0 : bank.nextVersion();
+    }
+    
+    long getCreationVersion() {
+        return creationVersion;
+    }
+    
+    // The balance and history as of a bank snapshot version.
+    long balanceBefore(long version) {
+        lock.lock();
+        try {
+            return transactionHistory.balanceBefore(version);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    TransactionLog.View historyBefore(long version) {
+        lock.lock();
+        try {
+            return transactionHistory.viewBefore(version);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public TransactionStats getStatistics(String type) {
+        byte code = TransactionLog.typeCode(type);
+        lock.lock();
+        try {
+            return ledger != null ? ledger.statistics(ledgerSlot, code) : transactionHistory.statistics(code);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    TransactionLog.View historyView() {
+        lock.lock();
+        try {
+            return history().view();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Callers must hold this account's lock.
+    private TransactionLog history() {
+        return ledger != null ? ledger.history(ledgerSlot) : transactionHistory;
+    }
+    
+    ReentrantLock getLock() {
+        return lock;
+    }
+    
+    int getLockStripe() {
+        return lockStripe;
+    }
+    
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof BankAccount) || ledger == null) {
+            return false;
+        }
+        BankAccount account = (BankAccount) other;
+        return ledger == account.ledger && ledgerSlot == account.ledgerSlot;
+    }
+    
+    @Override
+    public int hashCode() {
+        return ledger != null ? ledgerSlot : System.identityHashCode(this);
+    }
+}
+
+class Transfer {
+    private String fromAccountNumber;
+    private String toAccountNumber;
+    private long amountCents;
+    
+    public Transfer(String fromAccountNumber, String toAccountNumber, double amount) {
+        this.fromAccountNumber = fromAccountNumber;
+        this.toAccountNumber = toAccountNumber;
+        this.amountCents = Money.toCents(amount);
+    }
+    
+    public String getFromAccountNumber() {
+        return fromAccountNumber;
+    }
+    
+    public String getToAccountNumber() {
+        return toAccountNumber;
+    }
+    
+    public double getAmount() {
+        return Money.toDouble(amountCents);
+    }
+    
+    public long getAmountCents() {
+        return amountCents;
+    }
+    
+    @Override
+    public String toString() {
+        return fromAccountNumber + " -> " + toAccountNumber + ": $" + getAmount();
+    }
+}
+
+class MappedRegion implements Closeable {
+    static final long CHUNK_BYTES = 1L << 30;
+    private static final long MIN_MAPPING_BYTES = 1L << 20;
+    
+    private final FileChannel channel;
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    
+    MappedRegion(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        ensureCapacity(Math.max(channel.size(), 1));
+    }
+    
+    // Chunks are mapped at a small size and remapped larger as the region
+    // grows. A superseded mapping still views the same file pages, so readers
+    // holding it stay correct.
+    synchronized void ensureCapacity(long bytes) throws IOException {
+        MappedByteBuffer[] current = chunks;
+        int needed = (int) ((bytes + CHUNK_BYTES - 1) / CHUNK_BYTES);
+        MappedByteBuffer[] grown = current.length < needed ? Arrays.copyOf(current, needed) : current.clone();
+        boolean changed = grown.length != current.length;
+        for (int i = 0; i < needed; i++) {
+            long chunkStart = i * CHUNK_BYTES;
+            long wanted = Math.min(CHUNK_BYTES, bytes - chunkStart);
+            if (grown[i] == null || grown[i].capacity() < wanted) {
+                long size = Math.max(MIN_MAPPING_BYTES, grown[i] == null ? 0 : grown[i].capacity());
+                while (size < wanted) {
+                    size <<= 1;
+                }
+                grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, Math.min(size, CHUNK_BYTES));
+                changed = true;
+            }
+        }
+        if (changed) {
+            chunks = grown;
+        }
+    }
+    
+    long getLong(long offset) {
+        return chunk(offset).getLong(position(offset));
+    }
+    
+    void putLong(long offset, long value) {
+        chunk(offset).putLong(position(offset), value);
+    }
+    
+    int getInt(long offset) {
+        return chunk(offset).getInt(position(offset));
+    }
+    
+    void putInt(long offset, int value) {
+        chunk(offset).putInt(position(offset), value);
+    }
+    
+    byte get(long offset) {
+        return chunk(offset).get(position(offset));
+    }
+    
+    void put(long offset, byte value) {
+        chunk(offset).put(position(offset), value);
+    }
+    
+    // Byte ranges must not cross a chunk boundary.
+    void get(long offset, byte[] bytes) {
+        MappedByteBuffer chunk = chunk(offset);
+        int position = position(offset);
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = chunk.get(position + i);
+        }
+    }
+    
+    void put(long offset, byte[] bytes) {
+        MappedByteBuffer chunk = chunk(offset);
+        int position = position(offset);
+        for (int i = 0; i < bytes.length; i++) {
+            chunk.put(position + i, bytes[i]);
+        }
+    }
+    
+    private MappedByteBuffer chunk(long offset) {
+        return chunks[(int) (offset / CHUNK_BYTES)];
+    }
+    
+    private static int position(long offset) {
+        return (int) (offset % CHUNK_BYTES);
+    }
+    
+    void force() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+}
+
+class MappedLedger implements Closeable {
+    // Changed whenever the slot layout does.
+    private static final int MAGIC = 0x4C454432;
+    private static final long NO_RECORD = -1;
+    
+    private static final int HEADER_BYTES = 64;
+    private static final int COUNT_OFFSET = 8;
+    private static final int NAMES_END_OFFSET = 16;
+    private static final int HISTORY_END_OFFSET = 24;
+    
+    private static final int SLOT_BYTES = 160;
+    private static final int BALANCE_OFFSET = 0;
+    private static final int HISTORY_HEAD_OFFSET = 8;
+    private static final int HISTORY_COUNT_OFFSET = 16;
+    private static final int HOLDER_LENGTH_OFFSET = 20;
+    private static final int HOLDER_OFFSET = 24;
+    // Per type: count, total, min and max, kept as records are appended so
+    // statistics never walk the history.
+    private static final int STATS_OFFSET = 32;
+    private static final int TYPE_STATS_BYTES = 32;
+    
+    private static final int RECORD_BYTES = 32;
+    // History space is claimed from the file in steps this size, and the
+    // header records the claimed end, so it is only written while growing.
+    private static final long RECORD_RESERVE_BYTES = 1 << 20;
+    private static final int TIMESTAMP_OFFSET = 0;
+    private static final int AMOUNT_OFFSET = 8;
+    private static final int PREVIOUS_OFFSET = 16;
+    private static final int TYPE_OFFSET = 24;
+    
+    private final MappedRegion slots;
+    private final MappedRegion names;
+    private final MappedRegion records;
+    // Published after the slot is written, so readers need no lock.
+    private volatile int accountCount;
+    private long namesEnd;
+    // Records are claimed with getAndAdd; only a claim past recordsLimit
+    // takes the monitor, to grow the region.
+    private final AtomicLong recordsEnd = new AtomicLong();
+    private volatile long recordsLimit;
+    
+    private MappedLedger(MappedRegion slots, MappedRegion names, MappedRegion records) {
+        this.slots = slots;
+        this.names = names;
+        this.records = records;
+    }
+    
+    static MappedLedger open(Path directory) throws IOException {
+        MappedLedger ledger = new MappedLedger(new MappedRegion(directory.resolve("accounts.slots")),
+                new MappedRegion(directory.resolve("accounts.names")),
+                new MappedRegion(directory.resolve("accounts.history")));
+        ledger.slots.ensureCapacity(HEADER_BYTES);
+        int magic = ledger.slots.getInt(0);
+        if (magic == 0) {
+            ledger.slots.putInt(0, MAGIC);
+        } else if (magic != MAGIC) {
+            ledger.close();
+            throw new IOException("Not a bank ledger: " + directory);
+        }
+        ledger.accountCount = ledger.slots.getInt(COUNT_OFFSET);
+        ledger.namesEnd = ledger.slots.getLong(NAMES_END_OFFSET);
+        // Anything past the last claimed end may be partly used, so start
+        // after it.
+        ledger.recordsLimit = ledger.slots.getLong(HISTORY_END_OFFSET);
+        ledger.recordsEnd.set(ledger.recordsLimit);
+        return ledger;
+    }
+    
+    int accountCount() {
+        return accountCount;
+    }
+    
+    synchronized int allocate(String accountHolder) throws IOException {
+        byte[] holder = accountHolder.getBytes(StandardCharsets.UTF_8);
+        if (holder.length > MappedRegion.CHUNK_BYTES) {
+            throw new IllegalArgumentException("Account holder name too long");
+        }
+        
+        // Names never straddle a chunk; skip to the next one if needed.
+        long nameOffset = namesEnd;
+        if (nameOffset % MappedRegion.CHUNK_BYTES + holder.length > MappedRegion.CHUNK_BYTES) {
+            nameOffset = (nameOffset / MappedRegion.CHUNK_BYTES + 1) * MappedRegion.CHUNK_BYTES;
+        }
+        names.ensureCapacity(nameOffset + holder.length);
+        names.put(nameOffset, holder);
+        
+        int slot = accountCount;
+        long base = slotOffset(slot);
+        slots.ensureCapacity(base + SLOT_BYTES);
+        slots.putLong(base + BALANCE_OFFSET, 0);
+        slots.putLong(base + HISTORY_HEAD_OFFSET, NO_RECORD);
+        slots.putInt(base + HISTORY_COUNT_OFFSET, 0);
+        slots.putInt(base + HOLDER_LENGTH_OFFSET, holder.length);
+        slots.putLong(base + HOLDER_OFFSET, nameOffset);
+        for (int type = 0; type < TransactionLog.TYPE_COUNT; type++) {
+            slots.putLong(base + STATS_OFFSET + type * TYPE_STATS_BYTES, 0);
+        }
+        
+        namesEnd = nameOffset + holder.length;
+        accountCount++;
+        slots.putLong(NAMES_END_OFFSET, namesEnd);
+        slots.putInt(COUNT_OFFSET, accountCount);
+        return slot;
+    }
+    
+    String holder(int slot) {
+        long base = slotOffset(slot);
+        byte[] holder = new byte[slots.getInt(base + HOLDER_LENGTH_OFFSET)];
+        names.get(slots.getLong(base + HOLDER_OFFSET), holder);
+        return new String(holder, StandardCharsets.UTF_8);
+    }
+    
+    // Balance and history accessors below are called under the account's
+    // lock stripe, which serializes all access to one slot.
+    long balance(int slot) {
+        return slots.getLong(slotOffset(slot) + BALANCE_OFFSET);
+    }
+    
+    void setBalance(int slot, long balanceCents) {
+        slots.putLong(slotOffset(slot) + BALANCE_OFFSET, balanceCents);
+    }
+    
+    void append(int slot, long timestampMillis, long amountCents, byte type) {
+        long record = reserveRecord();
+        long base = slotOffset(slot);
+        records.putLong(record + TIMESTAMP_OFFSET, timestampMillis);
+        records.putLong(record + AMOUNT_OFFSET, amountCents);
+        records.putLong(record + PREVIOUS_OFFSET, slots.getLong(base + HISTORY_HEAD_OFFSET));
+        records.put(record + TYPE_OFFSET, type);
+        slots.putLong(base + HISTORY_HEAD_OFFSET, record);
+        slots.putInt(base + HISTORY_COUNT_OFFSET, slots.getInt(base + HISTORY_COUNT_OFFSET) + 1);
+        
+        long stats = base + STATS_OFFSET + type * TYPE_STATS_BYTES;
+        long count = slots.getLong(stats);
+        slots.putLong(stats, count + 1);
+        slots.putLong(stats + 8, slots.getLong(stats + 8) + amountCents);
+        slots.putLong(stats + 16, count == 0 ? amountCents : Math.min(slots.getLong(stats + 16), amountCents));
+        slots.putLong(stats + 24, count == 0 ? amountCents : Math.max(slots.getLong(stats + 24), amountCents));
+    }
+    
+    TransactionStats statistics(int slot, byte type) {
+        long stats = slotOffset(slot) + STATS_OFFSET + type * TYPE_STATS_BYTES;
+        long count = slots.getLong(stats);
+        if (count == 0) {
+            return TransactionStats.EMPTY;
+        }
+        return new TransactionStats(count, slots.getLong(stats + 8), slots.getLong(stats + 16),
+                slots.getLong(stats + 24));
+    }
+    
+    private long reserveRecord() {
+        long record = recordsEnd.getAndAdd(RECORD_BYTES);
+        if (record + RECORD_BYTES > recordsLimit) {
+            growRecords(record + RECORD_BYTES);
+        }
+        return record;
+    }
+    
+    private synchronized void growRecords(long needed) {
+        if (needed <= recordsLimit) {
+            return;
+        }
+        long limit = (needed / RECORD_RESERVE_BYTES + 1) * RECORD_RESERVE_BYTES;
+        try {
+            records.ensureCapacity(limit);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        slots.putLong(HISTORY_END_OFFSET, limit);
+        recordsLimit = limit;
+    }
+    
+    // Each slot's history is a backwards chain through the record region;
+    // it is copied onto the heap only when a caller asks for it.
+    TransactionLog history(int slot) {
+        long base = slotOffset(slot);
+        int count = slots.getInt(base + HISTORY_COUNT_OFFSET);
+        long[] timestamps = new long[count];
+        long[] amounts = new long[count];
+        byte[] types = new byte[count];
+        long record = slots.getLong(base + HISTORY_HEAD_OFFSET);
+        for (int i = count - 1; i >= 0; i--) {
+            timestamps[i] = records.getLong(record + TIMESTAMP_OFFSET);
+            amounts[i] = records.getLong(record + AMOUNT_OFFSET);
+            types[i] = records.get(record + TYPE_OFFSET);
+            record = records.getLong(record + PREVIOUS_OFFSET);
+        }
+        return new TransactionLog(timestamps, amounts, types, count);
+    }
+    
+    private static long slotOffset(int slot) {
+        return HEADER_BYTES + (long) slot * SLOT_BYTES;
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            records.close();
+            names.close();
+        } finally {
+            slots.close();
+        }
+    }
+}
+
+class BankJournal implements Closeable {
+    static final byte CREATE = 1;
+    static final byte DEPOSIT = 2;
+    static final byte WITHDRAWAL = 3;
+    static final byte TRANSFER = 4;
+    
+    private static final int HEADER_BYTES = 8;
+    private static final int SEGMENT_MAGIC = 0x424A4E31;
+    // [magic][unused][synced length]
+    private static final int SEGMENT_HEADER_BYTES = 16;
+    private static final int SYNCED_OFFSET = 8;
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    
+    interface Replayer {
+        void create(String accountNumber, String accountHolder) throws IOException;
+        
+        void entry(byte type, String accountNumber, long amountCents, long timestampMillis) throws IOException;
+        
+        void transfer(String fromAccountNumber, String toAccountNumber, long amountCents, long timestampMillis)
+                throws IOException;
+    }
+    
+    private final Path directory;
+    private final long fsyncIntervalMillis;
+    private final Object syncLock = new Object();
+    private final CRC32 checksum = new CRC32();
+    private final ScheduledExecutorService flusher;
+    private FileChannel channel;
+    private long generation;
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private long appendedSequence;
+    private long syncedSequence;
+    private IOException failure;
+    
+    // An fsync interval of zero makes every commit durable before it returns;
+    // concurrent committers share one fsync (group commit). A positive interval
+    // fsyncs in the background and may lose that much work on a crash.
+    BankJournal(Path directory, long generation, long fsyncIntervalMillis) throws IOException {
+        if (fsyncIntervalMillis < 0) {
+            throw new IllegalArgumentException("Fsync interval must not be negative");
+        }
+        
+        this.directory = directory;
+        this.generation = generation;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.channel = openSegment(directory, generation);
+        if (fsyncIntervalMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "bank-journal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, fsyncIntervalMillis, fsyncIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+    
+    synchronized long appendCreate(String accountNumber, String accountHolder) throws IOException {
+        byte[] number = encode(accountNumber);
+        byte[] holder = encode(accountHolder);
+        int start = beginRecord(1 + 2 + number.length + 2 + holder.length);
+        pending.put(CREATE);
+        putString(number);
+        putString(holder);
+        return endRecord(start);
+    }
+    
+    synchronized long appendEntry(byte type, String accountNumber, long amountCents, long timestampMillis)
+            throws IOException {
+        byte[] number = encode(accountNumber);
+        int start = beginRecord(1 + 2 + number.length + 16);
+        pending.put(type);
+        putString(number);
+        pending.putLong(amountCents);
+        pending.putLong(timestampMillis);
+        return endRecord(start);
+    }
+    
+    synchronized long appendTransfer(String fromAccountNumber, String toAccountNumber, long amountCents,
+            long timestampMillis) throws IOException {
+        byte[] from = encode(fromAccountNumber);
+        byte[] to = encode(toAccountNumber);
+        int start = beginRecord(1 + 2 + from.length + 2 + to.length + 16);
+        pending.put(TRANSFER);
+        putString(from);
+        putString(to);
+        pending.putLong(amountCents);
+        pending.putLong(timestampMillis);
+        return endRecord(start);
+    }
+    
+    private int beginRecord(int payloadBytes) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (pending.remaining() < HEADER_BYTES + payloadBytes) {
+            writePending();
+            if (pending.capacity() < HEADER_BYTES + payloadBytes) {
+                pending = ByteBuffer.allocate(HEADER_BYTES + payloadBytes);
+            }
+        }
+        int start = pending.position();
+        pending.position(start + HEADER_BYTES);
+        return start;
+    }
+    
+    private long endRecord(int start) {
+        int end = pending.position();
+        int payloadStart = start + HEADER_BYTES;
+        checksum.reset();
+        checksum.update(pending.array(), payloadStart, end - payloadStart);
+        pending.putInt(start, end - payloadStart);
+        pending.putInt(start + 4, (int) checksum.getValue());
+        return ++appendedSequence;
+    }
+    
+    synchronized long lastSequence() {
+        return appendedSequence;
+    }
+    
+    private static byte[] encode(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Value too long for the journal: " + value.length() + " chars");
+        }
+        return bytes;
+    }
+    
+    private void putString(byte[] bytes) {
+        pending.putShort((short) bytes.length);
+        pending.put(bytes);
+    }
+    
+    // Callers must hold this journal's monitor.
+    private void writePending() throws IOException {
+        pending.flip();
+        try {
+            while (pending.hasRemaining()) {
+                channel.write(pending);
+            }
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } finally {
+            pending.clear();
+        }
+    }
+    
+    void commit(long sequence) throws IOException {
+        if (fsyncIntervalMillis == 0) {
+            sync(sequence);
+        }
+    }
+    
+    private void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (syncedSequence >= sequence) {
+                return;
+            }
+            
+            // Everything appended so far is written and forced together, so
+            // callers queued behind this fsync find their record already durable.
+            long upTo;
+            long length;
+            FileChannel current;
+            synchronized (this) {
+                writePending();
+                upTo = appendedSequence;
+                length = channel.position();
+                current = channel;
+            }
+            current.force(false);
+            writeSyncedLength(current, length);
+            syncedSequence = upTo;
+        }
+    }
+    
+    private void flushQuietly() {
+        try {
+            long upTo;
+            synchronized (this) {
+                upTo = appendedSequence;
+            }
+            sync(upTo);
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+            }
+        }
+    }
+    
+    long roll() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                writePending();
+                channel.force(false);
+                writeSyncedLength(channel, channel.position());
+                channel.force(false);
+                channel.close();
+                generation++;
+                channel = openSegment(directory, generation);
+                syncedSequence = appendedSequence;
+                return generation;
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        synchronized (syncLock) {
+            synchronized (this) {
+                writePending();
+                channel.force(false);
+                writeSyncedLength(channel, channel.position());
+                channel.force(false);
+                channel.close();
+                syncedSequence = appendedSequence;
+            }
+        }
+    }
+    
+    static Path journalPath(Path directory, long generation) {
+        return directory.resolve(String.format("%s%016d%s", JOURNAL_PREFIX, generation, JOURNAL_SUFFIX));
+    }
+    
+    static Path snapshotPath(Path directory, long generation) {
+        return directory.resolve(String.format("%s%016d%s", SNAPSHOT_PREFIX, generation, SNAPSHOT_SUFFIX));
+    }
+    
+    static List<Long> journalGenerations(Path directory) throws IOException {
+        return generations(directory, JOURNAL_PREFIX, JOURNAL_SUFFIX);
+    }
+    
+    static List<Long> snapshotGenerations(Path directory) throws IOException {
+        return generations(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+    }
+    
+    private static List<Long> generations(Path directory, String prefix, String suffix) throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+    
+    // Segments are positioned rather than opened for append, since
+    // positional writes to the header are appended instead on Linux.
+    private static FileChannel openSegment(Path directory, long generation) throws IOException {
+        FileChannel channel = FileChannel.open(journalPath(directory, generation),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // A header shorter than its full size was never synced, and no
+        // record can have been written after it.
+        if (channel.size() < SEGMENT_HEADER_BYTES) {
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+            header.putInt(SEGMENT_MAGIC).putInt(0).putLong(SEGMENT_HEADER_BYTES).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(false);
+        }
+        channel.position(channel.size());
+        return channel;
+    }
+    
+    // Only ever called once the length given is forced. The header word
+    // itself reaches disk with the following force, so after a crash it
+    // can lag behind but never run ahead of what is durable.
+    private static void writeSyncedLength(FileChannel channel, long length) throws IOException {
+        ByteBuffer synced = ByteBuffer.allocate(8).putLong(length).flip();
+        while (synced.hasRemaining()) {
+            channel.write(synced, SYNCED_OFFSET + synced.position());
+        }
+    }
+    
+    // Replays one journal segment. Damage at or past the segment's synced
+    // length is what a crash leaves of appends that were never forced,
+    // torn or persisted out of order, so it is cut off even with intact
+    // records after it. Damage before it means the journal is corrupt,
+    // and the segment is left alone. Segments are forced and their length
+    // recorded before the next is started, so only the newest can have a
+    // tail to cut. This is the policy ContactStore applies to its file.
+    static void replay(Path file, Replayer replayer) throws IOException {
+        long size = Files.size(file);
+        if (size < SEGMENT_HEADER_BYTES) {
+            return;
+        }
+        
+        long synced;
+        long validBytes = SEGMENT_HEADER_BYTES;
+        boolean torn = false;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != SEGMENT_MAGIC) {
+                throw new IOException("Not a journal segment: " + file);
+            }
+            in.readInt();
+            synced = in.readLong();
+            
+            byte[] payload = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    torn = validBytes < size;
+                    break;
+                }
+                
+                try {
+                    int expected = in.readInt();
+                    // A torn header can claim any length; one running past
+                    // the end of the file is torn, not something to allocate.
+                    if (length <= 0 || length > size - validBytes - HEADER_BYTES) {
+                        torn = true;
+                        break;
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    }
+                    in.readFully(payload, 0, length);
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != expected) {
+                        torn = true;
+                        break;
+                    }
+                } catch (EOFException e) {
+                    torn = true;
+                    break;
+                }
+                
+                apply(ByteBuffer.wrap(payload, 0, length), replayer);
+                validBytes += HEADER_BYTES + length;
+            }
+        }
+        
+        if (validBytes < synced) {
+            throw new IOException("Corrupt journal segment: " + file + " is damaged at byte " + validBytes
+                    + ", before its synced length " + synced);
+        }
+        if (torn) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(validBytes);
+                channel.force(false);
+            }
+        }
+    }
+    
+    private static void apply(ByteBuffer record, Replayer replayer) throws IOException {
+        byte type = record.get();
+        switch (type) {
+            case CREATE:
+                replayer.create(getString(record), getString(record));
+                break;
+            case DEPOSIT:
+            case WITHDRAWAL:
+                replayer.entry(type, getString(record), record.getLong(), record.getLong());
+                break;
+            case TRANSFER:
+                replayer.transfer(getString(record), getString(record), record.getLong(), record.getLong());
+                break;
+            default:
+                throw new IOException("Unknown journal record type: " + type);
+        }
+    }
+    
+    private static String getString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort() & 0xFFFF];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+class AccountTable {
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    
+    private final AtomicReferenceArray<AtomicReferenceArray<BankAccount>> chunks =
+            new AtomicReferenceArray<>((Integer.MAX_VALUE >>> CHUNK_BITS) + 1);
+    
+    BankAccount get(int index) {
+        AtomicReferenceArray<BankAccount> chunk = chunks.get(index >>> CHUNK_BITS);
+        return chunk == null ? null : chunk.get(index & (CHUNK_SIZE - 1));
+    }
+    
+    void set(int index, BankAccount account) {
+        int chunkIndex = index >>> CHUNK_BITS;
+        AtomicReferenceArray<BankAccount> chunk = chunks.get(chunkIndex);
+        if (chunk == null) {
+            chunks.compareAndSet(chunkIndex, null, new AtomicReferenceArray<>(CHUNK_SIZE));
+            chunk = chunks.get(chunkIndex);
+        }
+        chunk.set(index & (CHUNK_SIZE - 1), account);
+    }
+}
+
+class BatchRejection {
+    private final long recordNumber;
+    private final String reason;
+    
+    BatchRejection(long recordNumber, String reason) {
+        this.recordNumber = recordNumber;
+        this.reason = reason;
+    }
+    
+    public long getRecordNumber() {
+        return recordNumber;
+    }
+    
+    public String getReason() {
+        return reason;
+    }
+    
+    @Override
+    public String toString() {
+        return "record " + recordNumber + ": " + reason;
+    }
+}
+
+class BatchResult {
+    private final long processed;
+    private final long rejected;
+    private final List<BatchRejection> rejections;
+    
+    BatchResult(long processed, long rejected, List<BatchRejection> rejections) {
+        this.processed = processed;
+        this.rejected = rejected;
+        this.rejections = rejections;
+    }
+    
+    public long getProcessed() {
+        return processed;
+    }
+    
+    public long getApplied() {
+        return processed - rejected;
+    }
+    
+    public long getRejected() {
+        return rejected;
+    }
+    
+    // Ordered by record number; capped, so getRejected() may be larger.
+    public List<BatchRejection> getRejections() {
+        return rejections;
+    }
+}
+
+class BatchImporter {
+    static final int MAX_REPORTED_REJECTIONS = 10_000;
+    private static final int BATCH_SIZE = 1024;
+    private static final int QUEUED_BATCHES_PER_WORKER = 16;
+    private static final long STOP_CHECK_MILLIS = 50;
+    
+    private final Bank bank;
+    private final Chunk[] filling;
+    private final List<BlockingQueue<Chunk>> queues;
+    private final List<BatchRejection> rejections = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong rejected = new AtomicLong();
+    // The first exception thrown by a worker.
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    // Set when the import is abandoned part way. Workers finish the chunk
+    // they are on and exit, and the reader stops rather than waiting on a
+    // queue nobody is draining. Workers are never interrupted, since an
+    // interrupt during journal I/O closes the journal's channel.
+    private volatile boolean stopped;
+    private long processed;
+    
+    BatchImporter(Bank bank, int workers) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("Worker count must be positive");
+        }
+        
+        this.bank = bank;
+        this.filling = new Chunk[workers];
+        this.queues = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            filling[i] = new Chunk();
+            queues.add(new ArrayBlockingQueue<>(QUEUED_BATCHES_PER_WORKER));
+        }
+    }
+    
+    // Lines look like "ACC1001,DEPOSIT,12.50"; blank lines are skipped.
+    BatchResult importCsv(Reader input) throws IOException {
+        BufferedReader reader = input instanceof BufferedReader
+                ? (BufferedReader) input : new BufferedReader(input, 1 << 16);
+        return run(() -> {
+            long lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int first = line.indexOf(',');
+                int second = first < 0 ? -1 : line.indexOf(',', first + 1);
+                if (second < 0) {
+                    reject(lineNumber, "Expected account,type,amount");
+                    continue;
+                }
+                
+                byte type = parseType(line, first + 1, second);
+                long amountCents;
+                try {
+                    amountCents = Money.parseCents(line, second + 1, line.length());
+                } catch (NumberFormatException e) {
+                    reject(lineNumber, e.getMessage());
+                    continue;
+                }
+                submit(lineNumber, line.substring(0, first), type, amountCents);
+            }
+        });
+    }
+    
+    // Records are a DataOutput UTF account number, a TransactionLog type
+    // code and an amount in cents. A record cut short by the end of the
+    // input is rejected like any other bad record.
+    BatchResult importBinary(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+        return run(() -> {
+            long recordNumber = 0;
+            while (true) {
+                in.mark(1);
+                if (in.read() < 0) {
+                    break;
+                }
+                in.reset();
+                recordNumber++;
+                
+                String accountNumber;
+                byte type;
+                long amountCents;
+                try {
+                    accountNumber = in.readUTF();
+                    type = in.readByte();
+                    amountCents = in.readLong();
+                } catch (EOFException e) {
+                    reject(recordNumber, "Truncated record");
+                    break;
+                }
+                submit(recordNumber, accountNumber, type, amountCents);
+            }
+        });
+    }
+    
+    private interface Source {
+        void read() throws IOException;
+    }
+    
+    // Unwinds the reader once the import has stopped.
+    private static final class StoppedException extends RuntimeException {
+        StoppedException() {
+            super(null, null, false, false);
+        }
+    }
+    
+    private BatchResult run(Source source) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(queues.size());
+        List<Future<?>> results = new ArrayList<>(queues.size());
+        for (BlockingQueue<Chunk> queue : queues) {
+            results.add(workers.submit(() -> drain(queue)));
+        }
+        
+        IOException readFailure = null;
+        boolean ended = false;
+        try {
+            try {
+                source.read();
+            } catch (IOException e) {
+                // Everything read before the failure is still applied.
+                readFailure = e;
+            }
+            for (int i = 0; i < filling.length; i++) {
+                enqueue(i);
+                enqueue(i, Chunk.END);
+            }
+            ended = true;
+        } catch (StoppedException e) {
+            // Reported below from failure.
+        } catch (InterruptedIOException e) {
+            readFailure = e;
+        } finally {
+            if (!ended) {
+                stopped = true;
+            }
+            awaitWorkers(results);
+            workers.shutdown();
+        }
+        
+        Throwable cause = failure.get();
+        if (cause instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) cause).getCause();
+        }
+        if (cause != null) {
+            throw new IllegalStateException("Import worker failed", cause);
+        }
+        if (readFailure != null) {
+            throw readFailure;
+        }
+        
+        List<BatchRejection> ordered = new ArrayList<>(rejections);
+        ordered.sort(Comparator.comparingLong(BatchRejection::getRecordNumber));
+        return new BatchResult(processed, rejected.get(), ordered);
+    }
+    
+    private static byte parseType(String line, int start, int end) {
+        if (line.startsWith("DEPOSIT", start) && end - start == 7) {
+            return TransactionLog.DEPOSIT;
+        }
+        if (line.startsWith("WITHDRAWAL", start) && end - start == 10) {
+            return TransactionLog.WITHDRAWAL;
+        }
+        return -1;
+    }
+    
+    private void reject(long recordNumber, String reason) {
+        processed++;
+        recordRejection(recordNumber, reason);
+    }
+    
+    private void recordRejection(long recordNumber, String reason) {
+        if (rejected.incrementAndGet() <= MAX_REPORTED_REJECTIONS) {
+            rejections.add(new BatchRejection(recordNumber, reason));
+        }
+    }
+    
+    // Records for one account always go to the same worker, so each account
+    // sees its records in file order.
+    private void submit(long recordNumber, String accountNumber, byte type, long amountCents) throws IOException {
+        processed++;
+        int worker = Math.floorMod(accountNumber.hashCode(), filling.length);
+        Chunk chunk = filling[worker];
+        chunk.add(recordNumber, accountNumber, type, amountCents);
+        if (chunk.size == BATCH_SIZE) {
+            enqueue(worker);
+        }
+    }
+    
+    private void enqueue(int worker) throws IOException {
+        if (filling[worker].size > 0) {
+            enqueue(worker, filling[worker]);
+            filling[worker] = new Chunk();
+        }
+    }
+    
+    private void enqueue(int worker, Chunk chunk) throws IOException {
+        try {
+            BlockingQueue<Chunk> queue = queues.get(worker);
+            do {
+                if (stopped) {
+                    throw new StoppedException();
+                }
+            } while (!queue.offer(chunk, STOP_CHECK_MILLIS, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Import interrupted");
+        }
+    }
+    
+    // Waits for every worker, however long their current chunk takes. An
+    // interrupt here stops them after that chunk instead.
+    private void awaitWorkers(List<Future<?>> results) {
+        boolean interrupted = false;
+        for (Future<?> result : results) {
+            while (true) {
+                try {
+                    result.get();
+                    break;
+                } catch (ExecutionException e) {
+                    // Recorded in failure by drain.
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    stopped = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private Void drain(BlockingQueue<Chunk> queue) throws InterruptedException {
+        try {
+            return applyChunks(queue);
+        } catch (RuntimeException | Error e) {
+            failure.compareAndSet(null, e);
+            stopped = true;
+            throw e;
+        }
+    }
+    
+    private Void applyChunks(BlockingQueue<Chunk> queue) throws InterruptedException {
+        while (true) {
+            Chunk chunk = queue.poll(STOP_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            if (stopped || chunk == Chunk.END) {
+                return null;
+            }
+            if (chunk == null) {
+                continue;
+            }
+            
+            // Durability is awaited once per chunk rather than once per record.
+            long journalSequence = 0;
+            for (int i = 0; i < chunk.size; i++) {
+                String failure = null;
+                BankAccount account = bank.findAccount(chunk.accountNumbers[i]);
+                long amountCents = chunk.amounts[i];
+                if (account == null) {
+                    failure = "Unknown account: " + chunk.accountNumbers[i];
+                } else if (amountCents <= 0) {
+                    failure = "Amount must be positive";
+                } else if (chunk.types[i] == TransactionLog.DEPOSIT) {
+                    journalSequence = Math.max(journalSequence, account.applyDeposit(amountCents));
+                } else if (chunk.types[i] == TransactionLog.WITHDRAWAL) {
+                    long sequence = account.applyWithdrawal(amountCents);
+                    if (sequence == BankAccount.DECLINED) {
+                        failure = "Insufficient funds for withdrawal";
+                    } else {
+                        journalSequence = Math.max(journalSequence, sequence);
+                    }
+                } else {
+                    failure = "Unknown transaction type";
+                }
+                if (failure != null) {
+                    recordRejection(chunk.recordNumbers[i], failure);
+                }
+            }
+            bank.awaitJournal(journalSequence);
+        }
+    }
+    
+    private static final class Chunk {
+        static final Chunk END = new Chunk();
+        
+        final long[] recordNumbers = new long[BATCH_SIZE];
+        final String[] accountNumbers = new String[BATCH_SIZE];
+        final byte[] types = new byte[BATCH_SIZE];
+        final long[] amounts = new long[BATCH_SIZE];
+        int size;
+        
+        void add(long recordNumber, String accountNumber, byte type, long amountCents) {
+            recordNumbers[size] = recordNumber;
+            accountNumbers[size] = accountNumber;
+            types[size] = type;
+            amounts[size] = amountCents;
+            size++;
+        }
+    }
+}
+
+class AccountSnapshot {
+    private final BankAccount account;
+    private final long version;
+    
+    AccountSnapshot(BankAccount account, long version) {
+        this.account = account;
+        this.version = version;
+    }
+    
+    public String getAccountNumber() {
+        return account.getAccountNumber();
+    }
+    
+    public String getAccountHolder() {
+        return account.getAccountHolder();
+    }
+    
+    public double getBalance() {
+        return Money.toDouble(getBalanceCents());
+    }
+    
+    public long getBalanceCents() {
+        return account.balanceBefore(version);
+    }
+    
+    public List<Transaction> getTransactionHistory() {
+        return account.historyBefore(version);
+    }
+}
+
+// A point-in-time view of a bank. Nothing is copied when it is taken: every
+// history entry carries the bank version that wrote it, and accounts are
+// resolved lazily against the snapshot's version.
+class BankSnapshot {
+    private final Bank bank;
+    private final long version;
+    private final int accountBound;
+    
+    BankSnapshot(Bank bank, long version, int accountBound) {
+        this.bank = bank;
+        this.version = version;
+        this.accountBound = accountBound;
+    }
+    
+    public long getVersion() {
+        return version;
+    }
+    
+    public AccountSnapshot findAccount(String accountNumber) {
+        int index = Bank.accountIndexOf(accountNumber);
+        return index < 0 || index >= accountBound ? null : snapshotOf(bank.accountAt(index));
+    }
+    
+    public List<AccountSnapshot> getAccounts() {
+        List<AccountSnapshot> snapshots = new ArrayList<>();
+        for (int i = 0; i < accountBound; i++) {
+            AccountSnapshot snapshot = snapshotOf(bank.accountAt(i));
+            if (snapshot != null) {
+                snapshots.add(snapshot);
+            }
+        }
+        return snapshots;
+    }
+    
+    public double getTotalBalance() {
+        return Money.toDouble(getTotalBalanceCents());
+    }
+    
+    public long getTotalBalanceCents() {
+        long total = 0;
+        for (int i = 0; i < accountBound; i++) {
+            AccountSnapshot snapshot = snapshotOf(bank.accountAt(i));
+            if (snapshot != null) {
+                total += snapshot.getBalanceCents();
+            }
+        }
+        return total;
+    }
+    
+    private AccountSnapshot snapshotOf(BankAccount account) {
+        if (account == null || account.getCreationVersion() >= version) {
+            return null;
+        }
+        return new AccountSnapshot(account, version);
+    }
+}
+
+class Bank implements Closeable {
+    private static final long DEFAULT_CHECKPOINT_EVENTS = 1_000_000;
+    private static final int SNAPSHOT_MAGIC = 0x42414E4B;
+    
+    private final AccountTable accounts = new AccountTable();
+    private final AtomicInteger nextAccountIndex = new AtomicInteger();
+    private final AtomicLong versionClock = new AtomicLong(1);
+    private final ReentrantLock[] lockStripes;
+    private volatile BankJournal journal;
+    private Path journalDirectory;
+    private long checkpointEveryEvents;
+    private volatile long checkpointSequence;
+    private final Object checkpointLock = new Object();
+    private final AtomicBoolean checkpointPending = new AtomicBoolean();
+    private ExecutorService checkpointer;
+    private MappedLedger ledger;
+    private final BankStatistics statistics = new BankStatistics();
+    private volatile boolean stacklessDeclines;
+    
+    public Bank() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+    
+    public Bank(int concurrencyLevel) {
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("Concurrency level must be positive");
+        }
+        
+        this.lockStripes = new ReentrantLock[concurrencyLevel];
+        for (int i = 0; i < lockStripes.length; i++) {
+            lockStripes[i] = new ReentrantLock();
+        }
+    }
+    
+    public static Bank open(Path directory) throws IOException {
+        return open(directory, 0, DEFAULT_CHECKPOINT_EVENTS);
+    }
+    
+    public static Bank open(Path directory, long fsyncIntervalMillis, long checkpointEveryEvents)
+            throws IOException {
+        if (checkpointEveryEvents <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive");
+        }
+        
+        Files.createDirectories(directory);
+        Bank bank = new Bank();
+        long generation = 0;
+        List<Long> snapshots = BankJournal.snapshotGenerations(directory);
+        if (!snapshots.isEmpty()) {
+            generation = snapshots.get(snapshots.size() - 1);
+            bank.loadSnapshot(BankJournal.snapshotPath(directory, generation));
+        }
+        
+        // Only the journal written since the newest snapshot is replayed.
+        List<Long> journals = BankJournal.journalGenerations(directory);
+        BankJournal.Replayer replayer = bank.replayer();
+        for (long journal : journals) {
+            if (journal >= generation) {
+                generation = journal;
+                BankJournal.replay(BankJournal.journalPath(directory, generation), replayer);
+            }
+        }
+        
+        bank.journalDirectory = directory;
+        bank.checkpointEveryEvents = checkpointEveryEvents;
+        bank.checkpointer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bank-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        bank.journal = new BankJournal(directory, generation, fsyncIntervalMillis);
+        return bank;
+    }
+    
+    // Keeps balances, holders and histories in memory-mapped files under the
+    // directory instead of on the heap; accounts are flyweight views over it.
+    public static Bank openMapped(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Bank bank = new Bank();
+        bank.ledger = MappedLedger.open(directory);
+        for (int slot = 0; slot < bank.ledger.accountCount(); slot++) {
+            bank.statistics.addBalance(bank.ledger.balance(slot));
+        }
+        return bank;
+    }
+    
+    public BankAccount createAccount(String accountHolder) {
+        Objects.requireNonNull(accountHolder, "Account holder is required");
+        if (ledger != null) {
+            try {
+                return mappedAccount(ledger.allocate(accountHolder));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        // Ids come from a single atomic counter. The CREATE record is
+        // journaled and then the account published, both under its own
+        // stripe, so nobody can reach the account before that record exists.
+        // An append that fails (a holder too long to journal, a failed
+        // journal) leaves the id unused and the account unpublished.
+        int index = nextAccountIndex.getAndIncrement();
+        if (index < 0) {
+            nextAccountIndex.set(Integer.MIN_VALUE);
+            throw new IllegalStateException("Account numbers exhausted");
+        }
+        
+        BankAccount account;
+        long journalSequence = 0;
+        ReentrantLock stripe = lockStripes[index % lockStripes.length];
+        stripe.lock();
+        try {
+            BankJournal journal = this.journal;
+            if (journal != null) {
+                try {
+                    journalSequence = journal.appendCreate(accountNumberFor(index), accountHolder);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            account = addAccount(index, accountHolder);
+        } finally {
+            stripe.unlock();
+        }
+        awaitJournal(journalSequence);
+        return account;
+    }
+    
+    private BankAccount addAccount(int index, String accountHolder) {
+        int stripe = index % lockStripes.length;
+        BankAccount account = new BankAccount(accountNumberFor(index), accountHolder, this, lockStripes[stripe], stripe);
+        accounts.set(index, account);
+        return account;
+    }
+    
+    // Used while restoring, where ids come from the snapshot or journal.
+    private BankAccount restoreAccount(String accountNumber, String accountHolder) throws IOException {
+        int index = accountIndexOf(accountNumber);
+        if (index < 0 || accounts.get(index) != null) {
+            throw new IOException("Invalid or duplicate account number " + accountNumber);
+        }
+        if (index >= nextAccountIndex.get()) {
+            nextAccountIndex.set(index + 1);
+        }
+        return addAccount(index, accountHolder);
+    }
+    
+    private BankAccount mappedAccount(int slot) {
+        int stripe = slot % lockStripes.length;
+        return new BankAccount(accountNumberFor(slot), this, lockStripes[stripe], stripe, ledger, slot);
+    }
+    
+    private static String accountNumberFor(int index) {
+        return "ACC" + (index + 1001);
+    }
+    
+    // Parses the numeric part of an ACC id back to its index, or -1.
+    static int accountIndexOf(String accountNumber) {
+        if (accountNumber == null || !accountNumber.startsWith("ACC") || accountNumber.length() == 3
+                || accountNumber.length() > 13 || accountNumber.charAt(3) == '0') {
+            return -1;
+        }
+        long number = 0;
+        for (int i = 3; i < accountNumber.length(); i++) {
+            char c = accountNumber.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+        }
+        long index = number - 1001;
+        return index >= 0 && index <= Integer.MAX_VALUE ? (int) index : -1;
+    }
+    
+    BankAccount accountAt(int index) {
+        return accounts.get(index);
+    }
+    
+    // Account numbers resolve straight to a table index (or ledger slot), so a
+    // lookup costs no hashing beyond parsing the digits.
+    public BankAccount findAccount(String accountNumber) {
+        int index = accountIndexOf(accountNumber);
+        if (index < 0) {
+            return null;
+        }
+        if (ledger != null) {
+            return index < ledger.accountCount() ? mappedAccount(index) : null;
+        }
+        return accounts.get(index);
+    }
+    
+    public List<BankAccount> getAllAccounts() {
+        if (ledger != null) {
+            int count = ledger.accountCount();
+            return new AbstractList<BankAccount>() {
+                @Override
+                public BankAccount get(int index) {
+                    return mappedAccount(Objects.checkIndex(index, count));
+                }
+                
+                @Override
+                public int size() {
+                    return count;
+                }
+            };
+        }
+        
+        // Ids whose creation is still in flight are skipped.
+        int count = Math.max(0, nextAccountIndex.get());
+        List<BankAccount> all = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            BankAccount account = accounts.get(i);
+            if (account != null) {
+                all.add(account);
+            }
+        }
+        return all;
+    }
+    
+    public void transfer(String fromAccountNumber, String toAccountNumber, double amount)
+            throws InsufficientFundsException {
+        transferCents(fromAccountNumber, toAccountNumber, Money.toCents(amount));
+    }
+    
+    public void transferCents(String fromAccountNumber, String toAccountNumber, long amountCents)
+            throws InsufficientFundsException {
+        BankAccount from = requireTransferAccount(fromAccountNumber);
+        BankAccount to = requireTransferAccount(toAccountNumber);
+        validateTransfer(from, to, amountCents);
+        
+        // Stripes are always locked in ascending index order so that opposing
+        // transfers between the same pair of stripes cannot deadlock.
+        int first = Math.min(from.getLockStripe(), to.getLockStripe());
+        int second = Math.max(from.getLockStripe(), to.getLockStripe());
+        long journalSequence;
+        lockStripes[first].lock();
+        lockStripes[second].lock();
+        try {
+            // Both legs share one version so snapshots see all or none of it.
+            long timestampMillis = System.currentTimeMillis();
+            if (!from.canDebit(amountCents)) {
+                if (stacklessDeclines) {
+                    throw InsufficientFundsException.TRANSFER_DECLINED;
+                }
+                throw new InsufficientFundsException("Insufficient funds for transfer");
+            }
+            to.checkCredit(amountCents);
+            // Journaled before either leg is applied, so a failed append
+            // leaves both balances untouched.
+            journalSequence = journalTransfer(fromAccountNumber, toAccountNumber, amountCents, timestampMillis);
+            long version = nextVersion();
+            from.debit(amountCents, TransactionLog.TRANSFER_OUT, timestampMillis, version);
+            to.credit(amountCents, TransactionLog.TRANSFER_IN, timestampMillis, version);
+        } finally {
+            lockStripes[second].unlock();
+            lockStripes[first].unlock();
+        }
+        awaitJournal(journalSequence);
+    }
+    
+    public List<Transfer> transferAll(List<Transfer> transfers) {
+        List<BankAccount> froms = new ArrayList<>(transfers.size());
+        List<BankAccount> tos = new ArrayList<>(transfers.size());
+        boolean[] stripesToLock = new boolean[lockStripes.length];
+        for (Transfer transfer : transfers) {
+            BankAccount from = requireTransferAccount(transfer.getFromAccountNumber());
+            BankAccount to = requireTransferAccount(transfer.getToAccountNumber());
+            validateTransfer(from, to, transfer.getAmountCents());
+            froms.add(from);
+            tos.add(to);
+            stripesToLock[from.getLockStripe()] = true;
+            stripesToLock[to.getLockStripe()] = true;
+        }
+        
+        // Each stripe touched by the batch is locked once, in ascending order,
+        // rather than once per transfer.
+        List<Transfer> rejected = new ArrayList<>();
+        long journalSequence = 0;
+        int locked = 0;
+        try {
+            for (; locked < lockStripes.length; locked++) {
+                if (stripesToLock[locked]) {
+                    lockStripes[locked].lock();
+                }
+            }
+            
+            long timestampMillis = System.currentTimeMillis();
+            for (int i = 0; i < transfers.size(); i++) {
+                Transfer transfer = transfers.get(i);
+                if (froms.get(i).canDebit(transfer.getAmountCents())) {
+                    tos.get(i).checkCredit(transfer.getAmountCents());
+                    journalSequence = journalTransfer(transfer.getFromAccountNumber(), transfer.getToAccountNumber(),
+                            transfer.getAmountCents(), timestampMillis);
+                    long version = nextVersion();
+                    froms.get(i).debit(transfer.getAmountCents(), TransactionLog.TRANSFER_OUT, timestampMillis, version);
+                    tos.get(i).credit(transfer.getAmountCents(), TransactionLog.TRANSFER_IN, timestampMillis, version);
+                } else {
+                    rejected.add(transfer);
+                }
+            }
+        } finally {
+            while (--locked >= 0) {
+                if (stripesToLock[locked]) {
+                    lockStripes[locked].unlock();
+                }
+            }
+        }
+        awaitJournal(journalSequence);
+        return rejected;
+    }
+    
+    // Every change is stamped with a version taken under its account lock(s).
+    // A snapshot reads the clock and then passes through every stripe once;
+    // any write stamped below the snapshot version has finished by then, and
+    // writers are held up for at most one stripe hand-off.
+    public BankSnapshot snapshot() {
+        if (ledger != null) {
+            throw new IllegalStateException("Snapshots are not supported by mapped banks");
+        }
+        
+        long version = versionClock.get();
+        int accountBound = Math.max(0, nextAccountIndex.get());
+        for (ReentrantLock stripe : lockStripes) {
+            stripe.lock();
+            stripe.unlock();
+        }
+        return new BankSnapshot(this, version, accountBound);
+    }
+    
+    long nextVersion() {
+        return versionClock.getAndIncrement();
+    }
+    
+    // When enabled, declined withdrawals and transfers throw a shared
+    // InsufficientFundsException without a stack trace.
+    public void setStacklessDeclines(boolean stacklessDeclines) {
+        this.stacklessDeclines = stacklessDeclines;
+    }
+    
+    public boolean isStacklessDeclines() {
+        return stacklessDeclines;
+    }
+    
+    public BatchResult importTransactions(Reader csv) throws IOException {
+        return importTransactions(csv, Runtime.getRuntime().availableProcessors());
+    }
+    
+    public BatchResult importTransactions(Reader csv, int workers) throws IOException {
+        return new BatchImporter(this, workers).importCsv(csv);
+    }
+    
+    public BatchResult importBinaryTransactions(InputStream input, int workers) throws IOException {
+        return new BatchImporter(this, workers).importBinary(input);
+    }
+    
+    public TransactionStats getStatistics(String type) {
+        return statistics.statistics(TransactionLog.typeCode(type));
+    }
+    
+    public List<TransactionStats> getMinuteRollups(String type, int minutes) {
+        return statistics.minuteRollups(TransactionLog.typeCode(type), minutes, System.currentTimeMillis());
+    }
+    
+    public double getTotalBalance() {
+        return Money.toDouble(getTotalBalanceCents());
+    }
+    
+    public long getTotalBalanceCents() {
+        return statistics.totalBalanceCents();
+    }
+    
+    BankStatistics getStatisticsRecorder() {
+        return statistics;
+    }
+    
+    private BankAccount requireTransferAccount(String accountNumber) {
+        BankAccount account = findAccount(accountNumber);
+        if (account == null) {
+            throw new IllegalArgumentException("Unknown account: " + accountNumber);
+        }
+        return account;
+    }
+    
+    private void validateTransfer(BankAccount from, BankAccount to, long amountCents) {
+        if (amountCents <= 0) {
+            throw new IllegalArgumentException("Transfer amount must be positive");
+        }
+        if (from.equals(to)) {
+            throw new IllegalArgumentException("Cannot transfer to the same account");
+        }
+    }
+    
+    // Journal records are appended while the account locks are held, so the
+    // journal order matches the order in which changes were applied.
+    long journalEntry(byte type, String accountNumber, long amountCents, long timestampMillis) {
+        BankJournal journal = this.journal;
+        if (journal == null) {
+            return 0;
+        }
+        try {
+            return journal.appendEntry(type, accountNumber, amountCents, timestampMillis);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
     
-    public void deposit(double amount) {
-        if (amount <= 0) {
-            throw new IllegalArgumentException("Deposit amount must be positive");
+    private long journalTransfer(String fromAccountNumber, String toAccountNumber, long amountCents,
+            long timestampMillis) {
+        BankJournal journal = this.journal;
+        if (journal == null) {
+            return 0;
+        }
+        try {
+            return journal.appendTransfer(fromAccountNumber, toAccountNumber, amountCents, timestampMillis);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        
-        balance += amount;
-        transactionHistory.add(new Transaction(amount, "DEPOSIT"));
     }
     
-    public void withdraw(double amount) throws InsufficientFundsException {
-        if (amount <= 0) {
-            throw new IllegalArgumentException("Withdrawal amount must be positive");
+    // Called after the account locks are released, so waiting for the fsync
+    // does not hold up other writers.
+    void awaitJournal(long journalSequence) {
+        BankJournal journal = this.journal;
+        if (journalSequence == 0 || journal == null) {
+            return;
         }
-        
-        if (amount > balance) {
-            throw new InsufficientFundsException("Insufficient funds for withdrawal");
+        try {
+            journal.commit(journalSequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
         
-        balance -= amount;
-        transactionHistory.add(new Transaction(amount, "WITHDRAWAL"));
-    }
-    
-    public List<Transaction> getTransactionHistory() {
-        return new ArrayList<>(transactionHistory);
+        if (journalSequence - checkpointSequence >= checkpointEveryEvents && checkpointPending.compareAndSet(false, true)) {
+            checkpointer.execute(() -> {
+                try {
+                    checkpoint();
+                } catch (IOException | RuntimeException e) {
+                    // The journal still holds everything; a failed snapshot only
+                    // makes the next recovery replay more of it.
+                } finally {
+                    checkpointPending.set(false);
+                }
+            });
+        }
     }
-}
-
-class Bank {
-    private List<BankAccount> accounts;
     
-    public Bank() {
-        this.accounts = new ArrayList<>();
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            BankJournal journal = this.journal;
+            if (journal == null) {
+                throw new IllegalStateException("Bank is not persistent");
+            }
+            
+            // Writers are paused only while the journal rolls over and the
+            // history views are taken; the snapshot itself is written afterwards.
+            long generation;
+            List<BankAccount> captured;
+            long[] balances;
+            List<TransactionLog.View> histories;
+            for (ReentrantLock stripe : lockStripes) {
+                stripe.lock();
+            }
+            try {
+                generation = journal.roll();
+                checkpointSequence = journal.lastSequence();
+                captured = getAllAccounts();
+                balances = new long[captured.size()];
+                histories = new ArrayList<>(captured.size());
+                for (int i = 0; i < captured.size(); i++) {
+                    balances[i] = captured.get(i).getBalanceCents();
+                    histories.add(captured.get(i).historyView());
+                }
+            } finally {
+                for (int i = lockStripes.length - 1; i >= 0; i--) {
+                    lockStripes[i].unlock();
+                }
+            }
+            
+            writeSnapshot(BankJournal.snapshotPath(journalDirectory, generation), captured, balances, histories);
+            for (long old : BankJournal.snapshotGenerations(journalDirectory)) {
+                if (old < generation) {
+                    Files.deleteIfExists(BankJournal.snapshotPath(journalDirectory, old));
+                }
+            }
+            for (long old : BankJournal.journalGenerations(journalDirectory)) {
+                if (old < generation) {
+                    Files.deleteIfExists(BankJournal.journalPath(journalDirectory, old));
+                }
+            }
+        }
     }
     
-    public BankAccount createAccount(String accountHolder) {
-        String accountNumber = generateAccountNumber();
-        BankAccount account = new BankAccount(accountNumber, accountHolder);
-        accounts.add(account);
-        return account;
+    private static void writeSnapshot(Path target, List<BankAccount> captured, long[] balances,
+            List<TransactionLog.View> histories) throws IOException {
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(captured.size());
+            for (int i = 0; i < captured.size(); i++) {
+                BankAccount account = captured.get(i);
+                TransactionLog.View history = histories.get(i);
+                out.writeUTF(account.getAccountNumber());
+                out.writeUTF(account.getAccountHolder());
+                out.writeLong(balances[i]);
+                out.writeInt(history.size());
+                for (int j = 0; j < history.size(); j++) {
+                    out.writeLong(history.getTimestampMillis(j));
+                    out.writeLong(history.getAmountCents(j));
+                    out.writeByte(history.getTypeCode(j));
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
     }
     
-    private String generateAccountNumber() {
-        return "ACC" + (accounts.size() + 1001);
+    private void loadSnapshot(Path snapshot) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a bank snapshot: " + snapshot);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                BankAccount account = restoreAccount(in.readUTF(), in.readUTF());
+                account.restoreBalance(in.readLong());
+                int entries = in.readInt();
+                for (int j = 0; j < entries; j++) {
+                    account.restoreEntry(in.readLong(), in.readLong(), in.readByte());
+                }
+            }
+        }
     }
     
-    public BankAccount findAccount(String accountNumber) {
-        for (BankAccount account : accounts) {
-            if (account.getAccountNumber().equals(accountNumber)) {
+    // Recovery runs before the bank is shared, so replayed changes are applied
+    // without taking the account locks.
+    private BankJournal.Replayer replayer() {
+        return new BankJournal.Replayer() {
+            @Override
+            public void create(String accountNumber, String accountHolder) throws IOException {
+                restoreAccount(accountNumber, accountHolder);
+            }
+            
+            @Override
+            public void entry(byte type, String accountNumber, long amountCents, long timestampMillis)
+                    throws IOException {
+                BankAccount account = replayAccount(accountNumber);
+                if (type == BankJournal.DEPOSIT) {
+                    account.credit(amountCents, TransactionLog.DEPOSIT, timestampMillis, nextVersion());
+                } else if (!account.debit(amountCents, TransactionLog.WITHDRAWAL, timestampMillis, nextVersion())) {
+                    throw new IOException("Journal withdrawal overdraws " + accountNumber);
+                }
+            }
+            
+            @Override
+            public void transfer(String fromAccountNumber, String toAccountNumber, long amountCents,
+                    long timestampMillis) throws IOException {
+                BankAccount from = replayAccount(fromAccountNumber);
+                BankAccount to = replayAccount(toAccountNumber);
+                long version = nextVersion();
+                if (!from.debit(amountCents, TransactionLog.TRANSFER_OUT, timestampMillis, version)) {
+                    throw new IOException("Journal transfer overdraws " + fromAccountNumber);
+                }
+                to.credit(amountCents, TransactionLog.TRANSFER_IN, timestampMillis, version);
+            }
+            
+            private BankAccount replayAccount(String accountNumber) throws IOException {
+                BankAccount account = findAccount(accountNumber);
+                if (account == null) {
+                    throw new IOException("Journal refers to unknown account " + accountNumber);
+                }
                 return account;
             }
-        }
-        return null;
+        };
     }
     
-    public List<BankAccount> getAllAccounts() {
-        return new ArrayList<>(accounts);
+    @Override
+    public void close() throws IOException {
+        if (ledger != null) {
+            ledger.close();
+            return;
+        }
+        
+        BankJournal journal = this.journal;
+        if (journal == null) {
+            return;
+        }
+        
+        // Callers must have stopped using the bank; close only drains the
+        // checkpointer and makes the journal durable.
+        checkpointer.shutdown();
+        synchronized (checkpointLock) {
+            this.journal = null;
+            journal.close();
+        }
     }
 }
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
@@ -181,6 +2674,18 @@ class BankAccountTest {
         assertEquals(100.0, account.getBalance());
     }
     
+    @Test
+    void testTryWithdraw() {
+        account.deposit(100.0);
+        assertTrue(account.tryWithdraw(40.0));
+        assertFalse(account.tryWithdraw(100.0));
+        assertEquals(60.0, account.getBalance());
+        assertEquals(2, account.getTransactionHistory().size());
+        assertThrows(IllegalArgumentException.class, () -> {
+            account.tryWithdraw(-1.0);
+        });
+    }
+    
     @Test
     void testNegativeWithdrawal() {
         assertThrows(IllegalArgumentException.class, () -> {
@@ -188,6 +2693,85 @@ class BankAccountTest {
         });
     }
     
+    @Test
+    void testAccountStatistics() throws InsufficientFundsException {
+        account.deposit(100.0);
+        account.deposit(20.0);
+        account.withdraw(50.0);
+        
+        TransactionStats deposits = account.getStatistics("DEPOSIT");
+        assertEquals(2, deposits.getCount());
+        assertEquals(120.0, deposits.getTotal());
+        assertEquals(20.0, deposits.getMin());
+        assertEquals(100.0, deposits.getMax());
+        assertEquals(1, account.getStatistics("WITHDRAWAL").getCount());
+        assertEquals(0, account.getStatistics("TRANSFER_IN").getCount());
+        assertThrows(IllegalArgumentException.class, () -> {
+            account.getStatistics("REFUND");
+        });
+    }
+    
+    @Test
+    void testFractionalAmountsDoNotDrift() throws InsufficientFundsException {
+        account.deposit(0.1);
+        account.deposit(0.1);
+        account.deposit(0.1);
+        account.withdraw(0.3);
+        assertEquals(0.0, account.getBalance());
+        assertEquals(0, account.getBalanceCents());
+    }
+    
+    @Test
+    void testCentsApi() throws InsufficientFundsException {
+        account.depositCents(1999);
+        account.withdrawCents(999);
+        assertEquals(1000, account.getBalanceCents());
+        assertEquals(10.0, account.getBalance());
+        assertEquals(999, account.getTransactionHistory().get(1).getAmountCents());
+    }
+    
+    @Test
+    void testSubCentDepositRejected() {
+        assertThrows(IllegalArgumentException.class, () -> {
+            account.deposit(0.001);
+        });
+        assertThrows(IllegalArgumentException.class, () -> {
+            account.deposit(Double.NaN);
+        });
+    }
+    
+    @Test
+    void testTransactionHistoryIsSnapshot() {
+        account.deposit(100.0);
+        List<Transaction> history = account.getTransactionHistory();
+        for (int i = 0; i < 100; i++) {
+            account.deposit(1.0);
+        }
+        assertEquals(1, history.size());
+        assertEquals(100.0, history.get(0).getAmount());
+        assertEquals(101, account.getTransactionHistory().size());
+        assertThrows(UnsupportedOperationException.class, () -> {
+            history.add(history.get(0));
+        });
+    }
+    
+    @Test
+    void testTransactionHistoryRange() throws InterruptedException {
+        account.deposit(10.0);
+        Thread.sleep(5);
+        Date from = new Date();
+        account.deposit(20.0);
+        account.deposit(30.0);
+        Date to = new Date(System.currentTimeMillis() + 1);
+        
+        List<Transaction> range = account.getTransactionHistory(from, to);
+        assertEquals(2, range.size());
+        assertEquals(20.0, range.get(0).getAmount());
+        assertEquals(30.0, range.get(1).getAmount());
+        assertEquals(0, account.getTransactionHistory(to, to).size());
+        assertEquals(3, account.getTransactionHistory(new Date(0), to).size());
+    }
+    
     @Test
     void testTransactionHistory() throws InsufficientFundsException {
         account.deposit(100.0);
@@ -244,6 +2828,586 @@ class BankTest {
         found = bank.findAccount("NONEXISTENT");
         assertNull(found);
     }
+    
+    @Test
+    void testFindAccountAmongManyAccounts() {
+        for (int i = 0; i < 10000; i++) {
+            bank.createAccount("Holder " + i);
+        }
+        
+        BankAccount found = bank.findAccount("ACC6000");
+        assertNotNull(found);
+        assertEquals("Holder 4999", found.getAccountHolder());
+        assertEquals("ACC1001", bank.getAllAccounts().get(0).getAccountNumber());
+        assertEquals("ACC11000", bank.getAllAccounts().get(9999).getAccountNumber());
+        assertNull(bank.findAccount("ACC11001"));
+    }
+    
+    @Test
+    void testConcurrentDepositsAndWithdrawals() throws InterruptedException {
+        int threads = 64;
+        int operationsPerThread = 2000;
+        List<BankAccount> shared = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            shared.add(bank.createAccount("Holder " + i));
+        }
+        AtomicInteger deposits = new AtomicInteger();
+        AtomicInteger withdrawals = new AtomicInteger();
+        AtomicInteger overdrafts = new AtomicInteger();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            executor.execute(() -> {
+                for (int i = 0; i < operationsPerThread; i++) {
+                    BankAccount account = shared.get((seed + i) % shared.size());
+                    if ((seed + i) % 3 == 0) {
+                        try {
+                            account.withdraw(2.0);
+                            withdrawals.incrementAndGet();
+                        } catch (InsufficientFundsException e) {
+                            // declined withdrawals are expected under contention
+                        }
+                    } else {
+                        account.deposit(1.0);
+                        deposits.incrementAndGet();
+                    }
+                    if (account.getBalance() < 0) {
+                        overdrafts.incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+        
+        double total = 0;
+        int historySize = 0;
+        for (BankAccount account : shared) {
+            assertTrue(account.getBalance() >= 0);
+            total += account.getBalance();
+            historySize += account.getTransactionHistory().size();
+        }
+        assertEquals(0, overdrafts.get());
+        assertEquals(deposits.get() - 2.0 * withdrawals.get(), total);
+        assertEquals(deposits.get() + withdrawals.get(), historySize);
+    }
+    
+    @Test
+    void testConcurrentAccountCreation() throws InterruptedException {
+        int threads = 32;
+        int accountsPerThread = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < accountsPerThread; i++) {
+                    bank.createAccount("Holder");
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+        
+        List<BankAccount> all = bank.getAllAccounts();
+        assertEquals(threads * accountsPerThread, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals("ACC" + (1001 + i), all.get(i).getAccountNumber());
+            assertSame(all.get(i), bank.findAccount(all.get(i).getAccountNumber()));
+        }
+    }
+    
+    @Test
+    void testImportTransactions() throws IOException {
+        bank.createAccount("Jane Doe");
+        bank.createAccount("John Smith");
+        String csv = "ACC1001,DEPOSIT,100.50\n"
+                + "ACC1002,DEPOSIT,20\n"
+                + "ACC1001,WITHDRAWAL,0.50\n"
+                + "ACC1002,WITHDRAWAL,25\n"
+                + "\n"
+                + "ACC9999,DEPOSIT,1\n"
+                + "ACC1001,REFUND,1\n"
+                + "ACC1001,DEPOSIT,1.234\n"
+                + "garbage\n";
+        
+        BatchResult result = bank.importTransactions(new StringReader(csv), 4);
+        
+        assertEquals(8, result.getProcessed());
+        assertEquals(3, result.getApplied());
+        assertEquals(5, result.getRejected());
+        assertEquals(4, result.getRejections().get(0).getRecordNumber());
+        assertEquals("Insufficient funds for withdrawal", result.getRejections().get(0).getReason());
+        assertEquals(6, result.getRejections().get(1).getRecordNumber());
+        assertEquals(9, result.getRejections().get(4).getRecordNumber());
+        assertEquals(100.0, bank.findAccount("ACC1001").getBalance());
+        assertEquals(20.0, bank.findAccount("ACC1002").getBalance());
+    }
+    
+    @Test
+    void testImportBinaryTransactions() throws IOException {
+        bank.createAccount("Jane Doe");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < 5000; i++) {
+            out.writeUTF("ACC1001");
+            out.writeByte(TransactionLog.DEPOSIT);
+            out.writeLong(1);
+        }
+        out.flush();
+        
+        BatchResult result = bank.importBinaryTransactions(new ByteArrayInputStream(bytes.toByteArray()), 2);
+        
+        assertEquals(5000, result.getApplied());
+        assertEquals(5000, bank.findAccount("ACC1001").getBalanceCents());
+        assertEquals(5000, bank.findAccount("ACC1001").getTransactionHistory().size());
+    }
+    
+    @Test
+    void testTruncatedBinaryRecordIsRejected() throws Exception {
+        Path directory = Files.createTempDirectory("bank-journal");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (int i = 0; i < 50_000; i++) {
+                out.writeUTF(i % 2 == 0 ? "ACC1001" : "ACC1002");
+                out.writeByte(TransactionLog.DEPOSIT);
+                out.writeLong(1);
+            }
+            out.writeUTF("ACC1001");
+            out.writeByte(TransactionLog.DEPOSIT);
+            out.flush();
+            
+            try (Bank persistent = Bank.open(directory)) {
+                persistent.createAccount("Jane Doe");
+                persistent.createAccount("John Smith");
+                BatchResult result = persistent.importBinaryTransactions(
+                        new ByteArrayInputStream(bytes.toByteArray()), 2);
+                
+                assertEquals(50_000, result.getApplied());
+                assertEquals(1, result.getRejected());
+                assertEquals(50_001, result.getRejections().get(0).getRecordNumber());
+                assertEquals("Truncated record", result.getRejections().get(0).getReason());
+                persistent.findAccount("ACC1001").deposit(1.0);
+            }
+            try (Bank recovered = Bank.open(directory)) {
+                assertEquals(25_100, recovered.findAccount("ACC1001").getBalanceCents());
+                assertEquals(25_000, recovered.findAccount("ACC1002").getBalanceCents());
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+    
+    @Test
+    void testImportStopsWhenAWorkerFails() {
+        bank.createAccount("Jane Doe");
+        bank.createAccount("John Smith");
+        StringBuilder csv = new StringBuilder();
+        // The second deposit overflows the balance and kills its worker while
+        // the reader still has plenty queued for it.
+        csv.append("ACC1001,DEPOSIT,90000000000000000\n");
+        csv.append("ACC1001,DEPOSIT,90000000000000000\n");
+        for (int i = 0; i < 40_000; i++) {
+            csv.append(i % 2 == 0 ? "ACC1001" : "ACC1002").append(",DEPOSIT,1\n");
+        }
+        
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> bank.importTransactions(new StringReader(csv.toString()), 2));
+        
+        assertTrue(e.getCause() instanceof ArithmeticException);
+    }
+    
+    @Test
+    void testStacklessDeclines() {
+        BankAccount account = bank.createAccount("Jane Doe");
+        bank.createAccount("John Smith");
+        InsufficientFundsException withStack = assertThrows(InsufficientFundsException.class, () -> {
+            account.withdraw(10.0);
+        });
+        assertTrue(withStack.getStackTrace().length > 0);
+        
+        bank.setStacklessDeclines(true);
+        InsufficientFundsException first = assertThrows(InsufficientFundsException.class, () -> {
+            account.withdraw(10.0);
+        });
+        InsufficientFundsException second = assertThrows(InsufficientFundsException.class, () -> {
+            account.withdraw(10.0);
+        });
+        assertSame(first, second);
+        assertEquals(0, first.getStackTrace().length);
+        assertEquals("Insufficient funds for withdrawal", first.getMessage());
+        assertThrows(InsufficientFundsException.class, () -> {
+            bank.transfer("ACC1001", "ACC1002", 10.0);
+        });
+    }
+    
+    @Test
+    void testSnapshotIsPointInTime() throws InsufficientFundsException {
+        bank.createAccount("Jane Doe").deposit(100.0);
+        bank.createAccount("John Smith").deposit(50.0);
+        
+        BankSnapshot snapshot = bank.snapshot();
+        bank.transfer("ACC1001", "ACC1002", 30.0);
+        bank.findAccount("ACC1001").withdraw(10.0);
+        bank.createAccount("Alex Roe").deposit(5.0);
+        
+        assertEquals(2, snapshot.getAccounts().size());
+        assertEquals(150.0, snapshot.getTotalBalance());
+        assertEquals(100.0, snapshot.findAccount("ACC1001").getBalance());
+        assertEquals(1, snapshot.findAccount("ACC1001").getTransactionHistory().size());
+        assertNull(snapshot.findAccount("ACC1003"));
+        assertEquals(60.0, bank.findAccount("ACC1001").getBalance());
+        assertEquals(145.0, bank.snapshot().getTotalBalance());
+    }
+    
+    @Test
+    void testSnapshotsUnderConcurrentTransfers() throws InterruptedException {
+        for (int i = 0; i < 16; i++) {
+            bank.createAccount("Holder " + i).deposit(100.0);
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            int seed = t;
+            executor.execute(() -> {
+                for (int i = 0; i < 5000; i++) {
+                    int from = (seed + i) % 16;
+                    int to = (seed * 3 + i * 7 + 1) % 16;
+                    if (from != to) {
+                        try {
+                            bank.transfer("ACC" + (1001 + from), "ACC" + (1001 + to), 1.0);
+                        } catch (InsufficientFundsException e) {
+                            // fine, balances only need to be conserved
+                        }
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < 200; i++) {
+            assertEquals(1600.0, bank.snapshot().getTotalBalance());
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+    }
+    
+    @Test
+    void testTransfer() throws InsufficientFundsException {
+        BankAccount from = bank.createAccount("Jane Doe");
+        BankAccount to = bank.createAccount("John Smith");
+        from.deposit(100.0);
+        
+        bank.transfer("ACC1001", "ACC1002", 40.0);
+        
+        assertEquals(60.0, from.getBalance());
+        assertEquals(40.0, to.getBalance());
+        assertEquals("TRANSFER_OUT", from.getTransactionHistory().get(1).getType());
+        assertEquals(40.0, from.getTransactionHistory().get(1).getAmount());
+        assertEquals("TRANSFER_IN", to.getTransactionHistory().get(0).getType());
+        assertEquals(40.0, to.getTransactionHistory().get(0).getAmount());
+    }
+    
+    @Test
+    void testTransferInsufficientFunds() {
+        BankAccount from = bank.createAccount("Jane Doe");
+        BankAccount to = bank.createAccount("John Smith");
+        from.deposit(10.0);
+        
+        assertThrows(InsufficientFundsException.class, () -> {
+            bank.transfer("ACC1001", "ACC1002", 40.0);
+        });
+        assertEquals(10.0, from.getBalance());
+        assertEquals(0.0, to.getBalance());
+        assertEquals(0, to.getTransactionHistory().size());
+    }
+    
+    @Test
+    void testTransferInvalidArguments() {
+        bank.createAccount("Jane Doe");
+        assertThrows(IllegalArgumentException.class, () -> {
+            bank.transfer("ACC1001", "NONEXISTENT", 10.0);
+        });
+        assertThrows(IllegalArgumentException.class, () -> {
+            bank.transfer("ACC1001", "ACC1001", 10.0);
+        });
+    }
+    
+    @Test
+    void testTransferAll() {
+        BankAccount hot = bank.createAccount("Jane Doe");
+        BankAccount other = bank.createAccount("John Smith");
+        BankAccount third = bank.createAccount("Alex Roe");
+        other.deposit(50.0);
+        third.deposit(5.0);
+        
+        List<Transfer> transfers = new ArrayList<>();
+        transfers.add(new Transfer("ACC1002", "ACC1001", 30.0));
+        transfers.add(new Transfer("ACC1003", "ACC1001", 10.0));
+        transfers.add(new Transfer("ACC1001", "ACC1003", 20.0));
+        
+        List<Transfer> rejected = bank.transferAll(transfers);
+        
+        assertEquals(1, rejected.size());
+        assertEquals(transfers.get(1), rejected.get(0));
+        assertEquals(10.0, hot.getBalance());
+        assertEquals(20.0, other.getBalance());
+        assertEquals(25.0, third.getBalance());
+    }
+    
+    @Test
+    void testConcurrentOpposingTransfers() throws InterruptedException {
+        bank.createAccount("Jane Doe").deposit(1000.0);
+        bank.createAccount("John Smith").deposit(1000.0);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        for (int t = 0; t < 16; t++) {
+            boolean forward = t % 2 == 0;
+            executor.execute(() -> {
+                for (int i = 0; i < 5000; i++) {
+                    try {
+                        if (forward) {
+                            bank.transfer("ACC1001", "ACC1002", 1.0);
+                        } else {
+                            bank.transfer("ACC1002", "ACC1001", 1.0);
+                        }
+                    } catch (InsufficientFundsException e) {
+                        // one side may briefly run dry
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+        
+        assertEquals(2000.0, bank.findAccount("ACC1001").getBalance() + bank.findAccount("ACC1002").getBalance());
+    }
+    
+    @Test
+    void testBankStatistics() throws InsufficientFundsException {
+        bank.createAccount("Jane Doe").deposit(100.0);
+        bank.createAccount("John Smith").deposit(40.0);
+        bank.findAccount("ACC1001").withdraw(10.0);
+        bank.transfer("ACC1002", "ACC1001", 15.0);
+        
+        assertEquals(130.0, bank.getTotalBalance());
+        assertEquals(2, bank.getStatistics("DEPOSIT").getCount());
+        assertEquals(140.0, bank.getStatistics("DEPOSIT").getTotal());
+        assertEquals(40.0, bank.getStatistics("DEPOSIT").getMin());
+        assertEquals(1, bank.getStatistics("TRANSFER_OUT").getCount());
+        
+        List<TransactionStats> rollups = bank.getMinuteRollups("DEPOSIT", 5);
+        assertEquals(5, rollups.size());
+        long recent = rollups.get(3).getCount() + rollups.get(4).getCount();
+        assertEquals(2, recent);
+        assertEquals(0, rollups.get(0).getCount());
+    }
+    
+    @Test
+    void testMinuteRollupsIgnoreOlderMinutes() {
+        BankStatistics statistics = new BankStatistics();
+        long now = System.currentTimeMillis();
+        statistics.record(TransactionLog.DEPOSIT, 100, now);
+        // Same bucket, an hour earlier, as replay after a restart would feed it.
+        statistics.record(TransactionLog.DEPOSIT, 50, now - 60 * 60_000);
+        
+        TransactionStats current = statistics.minuteRollups(TransactionLog.DEPOSIT, 1, now).get(0);
+        assertEquals(1, current.getCount());
+        assertEquals(1.0, current.getTotal());
+        assertEquals(2, statistics.statistics(TransactionLog.DEPOSIT).getCount());
+    }
+    
+    @Test
+    void testJournalRecovery() throws Exception {
+        Path directory = Files.createTempDirectory("bank-journal");
+        try {
+            try (Bank persistent = Bank.open(directory)) {
+                persistent.createAccount("Jane Doe").deposit(100.0);
+                persistent.createAccount("John Smith").deposit(50.0);
+                persistent.findAccount("ACC1001").withdraw(30.0);
+                persistent.transfer("ACC1002", "ACC1001", 20.0);
+            }
+            
+            try (Bank recovered = Bank.open(directory)) {
+                assertEquals(2, recovered.getAllAccounts().size());
+                assertEquals("Jane Doe", recovered.findAccount("ACC1001").getAccountHolder());
+                assertEquals(90.0, recovered.findAccount("ACC1001").getBalance());
+                assertEquals(30.0, recovered.findAccount("ACC1002").getBalance());
+                assertEquals(3, recovered.findAccount("ACC1001").getTransactionHistory().size());
+                assertEquals("TRANSFER_IN", recovered.findAccount("ACC1001").getTransactionHistory().get(2).getType());
+                assertEquals(120.0, recovered.getTotalBalance());
+                assertEquals(2, recovered.getStatistics("DEPOSIT").getCount());
+                assertEquals("ACC1003", recovered.createAccount("Alex Roe").getAccountNumber());
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+    
+    @Test
+    void testCheckpointRecovery() throws Exception {
+        Path directory = Files.createTempDirectory("bank-journal");
+        try {
+            try (Bank persistent = Bank.open(directory)) {
+                persistent.createAccount("Jane Doe").deposit(100.0);
+                persistent.checkpoint();
+                persistent.findAccount("ACC1001").deposit(25.0);
+            }
+            assertEquals(1, BankJournal.snapshotGenerations(directory).size());
+            assertEquals(1, BankJournal.journalGenerations(directory).size());
+            
+            try (Bank recovered = Bank.open(directory)) {
+                assertEquals(125.0, recovered.findAccount("ACC1001").getBalance());
+                assertEquals(2, recovered.findAccount("ACC1001").getTransactionHistory().size());
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+    
+    @Test
+    void testTornJournalTailIsDiscarded() throws Exception {
+        Path directory = Files.createTempDirectory("bank-journal");
+        try {
+            Path journalFile = BankJournal.journalPath(directory, 0);
+            long synced;
+            try (Bank persistent = Bank.open(directory)) {
+                persistent.createAccount("Jane Doe").deposit(100.0);
+                synced = Files.size(journalFile);
+                persistent.findAccount("ACC1001").deposit(1.0);
+            }
+            // As a crash leaves it: the last deposit torn and the segment's
+            // synced length not yet covering it.
+            long length = Files.size(journalFile);
+            try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(8).putLong(synced).flip(), 8);
+                channel.truncate(length - 3);
+            }
+            
+            try (Bank recovered = Bank.open(directory)) {
+                assertEquals(100.0, recovered.findAccount("ACC1001").getBalance());
+                recovered.findAccount("ACC1001").deposit(5.0);
+            }
+            try (Bank recovered = Bank.open(directory)) {
+                assertEquals(105.0, recovered.findAccount("ACC1001").getBalance());
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+    
+    @Test
+    void testJournalDamagedBeforeSyncedLengthIsRefused() throws Exception {
+        Path directory = Files.createTempDirectory("bank-journal");
+        try {
+            try (Bank persistent = Bank.open(directory)) {
+                persistent.createAccount("Jane Doe").deposit(100.0);
+                persistent.findAccount("ACC1001").deposit(1.0);
+            }
+            Path journalFile = BankJournal.journalPath(directory, 0);
+            try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(4), 20);
+            }
+            long length = Files.size(journalFile);
+            
+            assertThrows(IOException.class, () -> Bank.open(directory));
+            assertEquals(length, Files.size(journalFile));
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+    
+    @Test
+    void testUnjournalableHolderCreatesNoAccount() throws Exception {
+        Path directory = Files.createTempDirectory("bank-journal");
+        try {
+            try (Bank persistent = Bank.open(directory)) {
+                String holder = "x".repeat(70_000);
+                assertThrows(IllegalArgumentException.class, () -> persistent.createAccount(holder));
+                assertNull(persistent.findAccount("ACC1001"));
+                persistent.createAccount("Jane Doe").deposit(10.0);
+            }
+            try (Bank recovered = Bank.open(directory)) {
+                assertNull(recovered.findAccount("ACC1001"));
+                assertEquals(10.0, recovered.findAccount("ACC1002").getBalance());
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+    
+    @Test
+    void testTornJournalLengthIsNotAllocated() throws Exception {
+        Path directory = Files.createTempDirectory("bank-journal");
+        try {
+            try (Bank persistent = Bank.open(directory)) {
+                persistent.createAccount("Jane Doe").deposit(100.0);
+            }
+            // A garbage header claiming a huge record, as a torn tail can.
+            try (FileChannel channel = FileChannel.open(BankJournal.journalPath(directory, 0),
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                channel.write(ByteBuffer.allocate(8).putInt(Integer.MAX_VALUE - 16).putInt(0).flip());
+            }
+            
+            try (Bank recovered = Bank.open(directory)) {
+                assertEquals(100.0, recovered.findAccount("ACC1001").getBalance());
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+    
+    @Test
+    void testMappedBank() throws Exception {
+        Path directory = Files.createTempDirectory("bank-ledger");
+        try {
+            try (Bank mapped = Bank.openMapped(directory)) {
+                BankAccount account = mapped.createAccount("Jane Doe");
+                mapped.createAccount("John Smith");
+                assertEquals("ACC1001", account.getAccountNumber());
+                account.deposit(100.0);
+                account.withdraw(30.0);
+                mapped.transfer("ACC1001", "ACC1002", 20.0);
+                
+                assertEquals(account, mapped.findAccount("ACC1001"));
+                assertEquals(50.0, mapped.findAccount("ACC1001").getBalance());
+                assertNull(mapped.findAccount("ACC1003"));
+                assertNull(mapped.findAccount("NONEXISTENT"));
+                assertEquals(2, mapped.getAllAccounts().size());
+            }
+            
+            try (Bank reopened = Bank.openMapped(directory)) {
+                BankAccount account = reopened.findAccount("ACC1001");
+                assertEquals("Jane Doe", account.getAccountHolder());
+                assertEquals(50.0, account.getBalance());
+                assertEquals(20.0, reopened.findAccount("ACC1002").getBalance());
+                List<Transaction> history = account.getTransactionHistory();
+                assertEquals(3, history.size());
+                assertEquals("DEPOSIT", history.get(0).getType());
+                assertEquals(30.0, history.get(1).getAmount());
+                assertEquals("TRANSFER_OUT", history.get(2).getType());
+                account.deposit(40.0);
+                TransactionStats deposits = account.getStatistics("DEPOSIT");
+                assertEquals(2, deposits.getCount());
+                assertEquals(140.0, deposits.getTotal());
+                assertEquals(40.0, deposits.getMin());
+                assertEquals(100.0, deposits.getMax());
+                assertEquals(20.0, account.getStatistics("TRANSFER_OUT").getTotal());
+                assertEquals(0, account.getStatistics("TRANSFER_IN").getCount());
+                assertEquals(1, reopened.findAccount("ACC1002").getStatistics("TRANSFER_IN").getCount());
+                assertEquals("ACC1003", reopened.createAccount("Alex Roe").getAccountNumber());
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+    
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
 }
 
 public class BankAccountManagementSystem {
@@ -1,12 +1,84 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiPredicate;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
 
 public class ContactManagementSystem {
 
-    private static ArrayList<Contact> contacts = new ArrayList<>();
+    private static ContactDirectory directory;
+    private static final int PHONE_SUGGESTIONS = 10;
+    private static final int PAGE_SIZE = 50;
+    private static final int RENDER_CHUNK = 1 << 15;
+    private static final String TABLE_RULE = "----------------------------------------\n";
+    private static final StringBuilder renderBuffer = new StringBuilder(RENDER_CHUNK + 256);
+    private static final String DEFAULT_STORE = "contacts.db";
+    private static final int BATCH_SYNC_INTERVAL = 4096;
     private static Scanner scanner = new Scanner(System.in);
 
     public static void main(String[] args) {
+        Path storePath = Paths.get(DEFAULT_STORE);
+        String batchInput = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--store") && i + 1 < args.length) {
+                storePath = Paths.get(args[++i]);
+            } else if (args[i].equals("--batch")) {
+                batchInput = i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : "-";
+            }
+        }
+
+        try {
+            directory = ContactDirectory.open(storePath);
+        } catch (IOException e) {
+            System.err.println("Error: could not open contact store " + storePath + ": " + e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            if (batchInput != null) {
+                runBatch(batchInput);
+            } else {
+                runMenu();
+            }
+            directory.close();
+        } catch (IOException | UncheckedIOException e) {
+            Throwable cause = e instanceof UncheckedIOException ? e.getCause() : e;
+            System.err.println("Error: could not write contact store " + storePath + ": " + cause.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void runMenu() {
         boolean running = true;
 
         System.out.println("Welcome to Contact Management System!");
@@ -31,7 +103,16 @@ public class ContactManagementSystem {
                 case 5: 
                     deleteContact();
                     break;
-                case 6: // Exit
+                case 6:
+                    lookUpPhoneNumber();
+                    break;
+                case 7:
+                    findDuplicates();
+                    break;
+                case 8:
+                    browseContacts();
+                    break;
+                case 9: // Exit
                     running = false;
                     System.out.println("Thank you for using Contact Management System!");
                     break;
@@ -39,12 +120,219 @@ public class ContactManagementSystem {
                     System.out.println("Invalid choice. Please try again.");
             }
 
+            directory.sync();
             System.out.println(); 
         }
 
         scanner.close();
     }
 
+    // Headless mode: one tab-separated command per line from a file, or from
+    // stdin when the path is "-". Every command writes one status line,
+    // "ok" or "error", followed for list and search by one line per contact.
+    // The store is synced every BATCH_SYNC_INTERVAL commands and at the end.
+    //   add <name> <phone> <email>
+    //   update <id> <name> <phone> <email>   (empty fields are kept)
+    //   delete <id>
+    //   search <term>
+    //   list
+    //   validate                              (lists "<id> phone|email" per bad field)
+    //   duplicates                            (lists one "<id>,<id>,..." line per group)
+    //   merge <id> <id>...                    (keeps the first, filling its empty fields)
+    //   names <prefix>                        (in name order; an empty prefix lists everyone)
+    //   domain <domain>                       (everyone at an email domain, in name order)
+    private static void runBatch(String path) {
+        try (BufferedReader in = path.equals("-")
+                 ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16)
+                 : Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8);
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16)) {
+            String line;
+            int unsynced = 0;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    runBatchCommand(line.split("\t", -1), out);
+                }
+                if (++unsynced == BATCH_SYNC_INTERVAL) {
+                    directory.sync();
+                    unsynced = 0;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void runBatchCommand(String[] fields, BufferedWriter out) throws IOException {
+        switch (fields[0]) {
+            case "add":
+                if (fields.length != 4) {
+                    writeError(out, "usage: add <name> <phone> <email>");
+                    return;
+                }
+                writeOk(out, directory.add(fields[1], fields[2], fields[3]).getId());
+                return;
+            case "update": {
+                if (fields.length != 5) {
+                    writeError(out, "usage: update <id> <name> <phone> <email>");
+                    return;
+                }
+                Contact updated = directory.update(batchId(fields[1]), fields[2], fields[3], fields[4]);
+                if (updated == null) {
+                    writeError(out, "unknown id");
+                    return;
+                }
+                writeOk(out, updated.getId());
+                return;
+            }
+            case "delete": {
+                if (fields.length != 2) {
+                    writeError(out, "usage: delete <id>");
+                    return;
+                }
+                Contact deleted = directory.delete(batchId(fields[1]));
+                if (deleted == null) {
+                    writeError(out, "unknown id");
+                    return;
+                }
+                writeOk(out, deleted.getId());
+                return;
+            }
+            case "search":
+                if (fields.length != 2) {
+                    writeError(out, "usage: search <term>");
+                    return;
+                }
+                writeContacts(out, directory.search(fields[1].trim()));
+                return;
+            case "list":
+                writeContacts(out, directory.list());
+                return;
+            case "validate":
+                writeInvalidFields(out, directory.list());
+                return;
+            case "duplicates":
+                writeDuplicateGroups(out, directory.duplicateGroups());
+                return;
+            case "names":
+                if (fields.length != 2) {
+                    writeError(out, "usage: names <prefix>");
+                    return;
+                }
+                writeContacts(out, directory.findByNamePrefix(fields[1]));
+                return;
+            case "domain":
+                if (fields.length != 2) {
+                    writeError(out, "usage: domain <domain>");
+                    return;
+                }
+                writeContacts(out, directory.findByEmailDomain(fields[1]));
+                return;
+            case "merge": {
+                List<Integer> ids = new ArrayList<>();
+                for (int i = 1; i < fields.length; i++) {
+                    int id = batchId(fields[i]);
+                    if (directory.find(id) == null || ids.contains(id)) {
+                        writeError(out, ids.contains(id) ? "repeated id " + fields[i] : "unknown id " + fields[i]);
+                        return;
+                    }
+                    ids.add(id);
+                }
+                if (ids.size() < 2) {
+                    writeError(out, "usage: merge <id> <id>...");
+                    return;
+                }
+                Contact merged = directory.merge(ids.get(0), ids.subList(1, ids.size()));
+                if (merged == null) {
+                    writeError(out, "unknown id");
+                    return;
+                }
+                writeOk(out, merged.getId());
+                return;
+            }
+            default:
+                writeError(out, "unknown command " + fields[0]);
+        }
+    }
+
+    // Unparseable ids become 0, which no contact has.
+    private static int batchId(String id) {
+        try {
+            return Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void writeOk(BufferedWriter out, int id) throws IOException {
+        out.write("ok\t");
+        out.write(Integer.toString(id));
+        out.newLine();
+    }
+
+    private static void writeError(BufferedWriter out, String message) throws IOException {
+        out.write("error\t");
+        out.write(message);
+        out.newLine();
+    }
+
+    // Checks every contact twice, counting and then writing, rather than
+    // collecting the failures; the checks themselves allocate nothing.
+    private static void writeInvalidFields(BufferedWriter out, Collection<Contact> contactList) throws IOException {
+        int invalid = 0;
+        for (Contact contact : contactList) {
+            invalid += ContactValidator.isPhoneNumber(contact.getPhoneNumber()) ? 0 : 1;
+            invalid += ContactValidator.isEmail(contact.getEmail()) ? 0 : 1;
+        }
+
+        out.write("ok\t");
+        out.write(Integer.toString(invalid));
+        out.newLine();
+        for (Contact contact : contactList) {
+            if (!ContactValidator.isPhoneNumber(contact.getPhoneNumber())) {
+                out.write(Integer.toString(contact.getId()));
+                out.write("\tphone");
+                out.newLine();
+            }
+            if (!ContactValidator.isEmail(contact.getEmail())) {
+                out.write(Integer.toString(contact.getId()));
+                out.write("\temail");
+                out.newLine();
+            }
+        }
+    }
+
+    private static void writeDuplicateGroups(BufferedWriter out, List<ArrayList<Contact>> groups) throws IOException {
+        out.write("ok\t");
+        out.write(Integer.toString(groups.size()));
+        out.newLine();
+        for (ArrayList<Contact> group : groups) {
+            for (int i = 0; i < group.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.write(Integer.toString(group.get(i).getId()));
+            }
+            out.newLine();
+        }
+    }
+
+    private static void writeContacts(BufferedWriter out, Collection<Contact> contactList) throws IOException {
+        out.write("ok\t");
+        out.write(Integer.toString(contactList.size()));
+        out.newLine();
+        for (Contact contact : contactList) {
+            out.write(Integer.toString(contact.getId()));
+            out.write('\t');
+            out.write(contact.getName());
+            out.write('\t');
+            out.write(contact.getPhoneNumber());
+            out.write('\t');
+            out.write(contact.getEmail());
+            out.newLine();
+        }
+    }
+
     private static void printMenu() {
         System.out.println("\n==== CONTACT MANAGEMENT MENU ====");
         System.out.println("1. Add a new contact");
@@ -52,7 +340,10 @@ public class ContactManagementSystem {
         System.out.println("3. Search for a contact");
         System.out.println("4. Update a contact");
         System.out.println("5. Delete a contact");
-        System.out.println("6. Exit");
+        System.out.println("6. Look up a phone number");
+        System.out.println("7. Find duplicate contacts");
+        System.out.println("8. Browse by name or email domain");
+        System.out.println("9. Exit");
     }
 
     private static void addContact() {
@@ -63,49 +354,45 @@ public class ContactManagementSystem {
         String email = getStringInput("Enter email address: ");
 
        
-        if (!phoneNumber.matches("\\d+")) {
-            System.out.println("Warning: Phone number should contain only digits.");
+        if (!ContactValidator.isPhoneNumber(phoneNumber)) {
+            System.out.println(ContactValidator.PHONE_WARNING);
         }
 
         
-        if (!email.contains("@")) {
-            System.out.println("Warning: Email address should contain '@' symbol.");
+        if (!ContactValidator.isEmail(email)) {
+            System.out.println(ContactValidator.EMAIL_WARNING);
+        }
+
+        for (Contact existing : directory.possibleDuplicates(name, phoneNumber, email)) {
+            System.out.println("Warning: This may be a duplicate of " + existing + ".");
         }
 
-        Contact newContact = new Contact(name, phoneNumber, email);
-        contacts.add(newContact);
+        Contact newContact = directory.add(name, phoneNumber, email);
         
-        System.out.println("Contact added successfully!");
+        System.out.println("Contact added successfully with ID " + newContact.getId() + "!");
     }
 
     private static void viewAllContacts() {
         System.out.println("\n==== ALL CONTACTS ====");
         
-        if (contacts.isEmpty()) {
+        if (directory.isEmpty()) {
             System.out.println("No contacts found.");
             return;
         }
 
-        displayContacts(contacts);
+        displayContacts(directory.list());
     }
 
     private static void searchContact() {
         System.out.println("\n==== SEARCH CONTACT ====");
         
-        if (contacts.isEmpty()) {
+        if (directory.isEmpty()) {
             System.out.println("No contacts found.");
             return;
         }
 
-        String searchTerm = getStringInput("Enter name or phone number to search: ").toLowerCase();
-        ArrayList<Contact> searchResults = new ArrayList<>();
-
-        for (Contact contact : contacts) {
-            if (contact.getName().toLowerCase().contains(searchTerm) || 
-                contact.getPhoneNumber().contains(searchTerm)) {
-                searchResults.add(contact);
-            }
-        }
+        String searchTerm = getStringInput("Enter name or phone number to search: ");
+        List<Contact> searchResults = directory.search(searchTerm);
 
         if (searchResults.isEmpty()) {
             System.out.println("No matching contacts found.");
@@ -118,101 +405,208 @@ public class ContactManagementSystem {
     private static void updateContact() {
         System.out.println("\n==== UPDATE CONTACT ====");
         
-        if (contacts.isEmpty()) {
+        if (directory.isEmpty()) {
             System.out.println("No contacts found.");
             return;
         }
 
         viewAllContacts();
-        int index = getIntInput("Enter the index of the contact to update (or 0 to cancel): ") - 1;
+        int id = getIntInput("Enter the ID of the contact to update (or 0 to cancel): ");
 
-        if (index == -1) {
+        if (id == 0) {
             System.out.println("Update canceled.");
             return;
         }
 
-        if (index < 0 || index >= contacts.size()) {
-            System.out.println("Invalid contact index.");
+        Contact contactToUpdate = directory.find(id);
+        if (contactToUpdate == null) {
+            System.out.println("Invalid contact ID.");
             return;
         }
 
-        Contact contactToUpdate = contacts.get(index);
         System.out.println("Updating contact: " + contactToUpdate);
 
         System.out.println("Leave field empty to keep the current value.");
         
         String name = getStringInput("Enter new name (" + contactToUpdate.getName() + "): ");
-        if (!name.isEmpty()) {
-            contactToUpdate.setName(name);
-        }
 
         String phoneNumber = getStringInput("Enter new phone number (" + contactToUpdate.getPhoneNumber() + "): ");
         if (!phoneNumber.isEmpty()) {
           
-            if (!phoneNumber.matches("\\d+")) {
-                System.out.println("Warning: Phone number should contain only digits.");
+            if (!ContactValidator.isPhoneNumber(phoneNumber)) {
+                System.out.println(ContactValidator.PHONE_WARNING);
             }
-            contactToUpdate.setPhoneNumber(phoneNumber);
         }
 
         String email = getStringInput("Enter new email address (" + contactToUpdate.getEmail() + "): ");
         if (!email.isEmpty()) {
             
-            if (!email.contains("@")) {
-                System.out.println("Warning: Email address should contain '@' symbol.");
+            if (!ContactValidator.isEmail(email)) {
+                System.out.println(ContactValidator.EMAIL_WARNING);
             }
-            contactToUpdate.setEmail(email);
         }
 
+        if (directory.update(id, name, phoneNumber, email) == null) {
+            System.out.println("Invalid contact ID.");
+            return;
+        }
         System.out.println("Contact updated successfully!");
     }
 
     private static void deleteContact() {
         System.out.println("\n==== DELETE CONTACT ====");
         
-        if (contacts.isEmpty()) {
+        if (directory.isEmpty()) {
             System.out.println("No contacts found.");
             return;
         }
 
         viewAllContacts();
-        int index = getIntInput("Enter the index of the contact to delete (or 0 to cancel): ") - 1;
+        int id = getIntInput("Enter the ID of the contact to delete (or 0 to cancel): ");
 
-        if (index == -1) {
+        if (id == 0) {
             System.out.println("Deletion canceled.");
             return;
         }
 
-        if (index < 0 || index >= contacts.size()) {
-            System.out.println("Invalid contact index.");
+        Contact contactToDelete = directory.find(id);
+        if (contactToDelete == null) {
+            System.out.println("Invalid contact ID.");
             return;
         }
 
-        Contact contactToDelete = contacts.get(index);
         String confirmation = getStringInput("Are you sure you want to delete " + contactToDelete.getName() + "? (y/n): ");
 
-        if (confirmation.equalsIgnoreCase("y")) {
-            contacts.remove(index);
+        if (confirmation.equalsIgnoreCase("y") && directory.delete(id) != null) {
             System.out.println("Contact deleted successfully!");
         } else {
             System.out.println("Deletion canceled.");
         }
     }
 
-    private static void displayContacts(ArrayList<Contact> contactList) {
-        System.out.println("----------------------------------------");
-        System.out.printf("%-5s %-20s %-15s %-25s\n", "Index", "Name", "Phone Number", "Email");
-        System.out.println("----------------------------------------");
+    private static void findDuplicates() {
+        System.out.println("\n==== FIND DUPLICATE CONTACTS ====");
+
+        List<ArrayList<Contact>> groups = directory.duplicateGroups();
+        if (groups.isEmpty()) {
+            System.out.println("No duplicate contacts found.");
+            return;
+        }
+
+        System.out.println("Found " + groups.size() + " group(s) of possible duplicates.");
+        for (ArrayList<Contact> group : groups) {
+            displayContacts(group);
+        }
+    }
+
+    private static void browseContacts() {
+        System.out.println("\n==== BROWSE CONTACTS ====");
+
+        if (directory.isEmpty()) {
+            System.out.println("No contacts found.");
+            return;
+        }
+
+        String query = getStringInput("Enter the start of a name, or @domain for an email domain (empty for all): ");
+        List<Contact> results = query.startsWith("@")
+            ? directory.findByEmailDomain(query)
+            : directory.findByNamePrefix(query);
+
+        if (results.isEmpty()) {
+            System.out.println("No matching contacts found.");
+        } else {
+            displayContacts(results);
+        }
+    }
+
+    private static void lookUpPhoneNumber() {
+        System.out.println("\n==== LOOK UP PHONE NUMBER ====");
+
+        if (directory.isEmpty()) {
+            System.out.println("No contacts found.");
+            return;
+        }
+
+        String number = getStringInput("Enter a phone number or its first digits: ");
+        List<Contact> exactMatches = directory.findByPhoneNumber(number);
+
+        if (!exactMatches.isEmpty()) {
+            System.out.println("Exact matches:");
+            displayContacts(exactMatches);
+            return;
+        }
+
+        List<Contact> suggestions = directory.findByPhonePrefix(number, PHONE_SUGGESTIONS);
+        if (suggestions.isEmpty()) {
+            System.out.println("No matching phone numbers found.");
+        } else {
+            System.out.println("Numbers starting with " + number + ":");
+            displayContacts(suggestions);
+        }
+    }
+
+    // Renders PAGE_SIZE rows at a time, asking before each further page,
+    // so only the rows actually shown are visited. Rows are padded by hand
+    // into a reused buffer that is written out in large chunks.
+    private static void displayContacts(Collection<Contact> contactList) {
+        int pages = Math.max(1, (contactList.size() + PAGE_SIZE - 1) / PAGE_SIZE);
+        Iterator<Contact> remaining = contactList.iterator();
+        boolean showAll = false;
+        boolean tableOpen = false;
+
+        for (int page = 1; page <= pages; page++) {
+            if (!tableOpen) {
+                renderBuffer.append(TABLE_RULE);
+                renderRow("ID", "Name", "Phone Number", "Email");
+                renderBuffer.append(TABLE_RULE);
+                tableOpen = true;
+            }
+            for (int row = 0; row < PAGE_SIZE && remaining.hasNext(); row++) {
+                Contact contact = remaining.next();
+                renderRow(Integer.toString(contact.getId()), contact.getName(), contact.getPhoneNumber(), contact.getEmail());
+                if (renderBuffer.length() >= RENDER_CHUNK) {
+                    flushRender();
+                }
+            }
+            if (page == pages || !showAll) {
+                renderBuffer.append(TABLE_RULE);
+                tableOpen = false;
+            }
+            flushRender();
+
+            if (page < pages && !showAll) {
+                String next = getStringInput("Page " + page + " of " + pages
+                    + ". Press Enter for the next page, 'a' for all, or 'q' to stop: ");
+                if (next.equalsIgnoreCase("q")) {
+                    return;
+                }
+                showAll = next.equalsIgnoreCase("a");
+            }
+        }
+    }
+
+    // Same layout as "%-5s %-20s %-15s %-25s\n": pads, never truncates.
+    private static void renderRow(String id, String name, String phoneNumber, String email) {
+        renderColumn(id, 5);
+        renderBuffer.append(' ');
+        renderColumn(name, 20);
+        renderBuffer.append(' ');
+        renderColumn(phoneNumber, 15);
+        renderBuffer.append(' ');
+        renderColumn(email, 25);
+        renderBuffer.append('\n');
+    }
 
-        for (int i = 0; i < contactList.size(); i++) {
-            Contact contact = contactList.get(i);
-            System.out.printf("%-5d %-20s %-15s %-25s\n", 
-                (i + 1), 
-                contact.getName(), 
-                contact.getPhoneNumber(), 
-                contact.getEmail());
+    private static void renderColumn(String value, int width) {
+        renderBuffer.append(value);
+        for (int i = value.length(); i < width; i++) {
+            renderBuffer.append(' ');
         }
-        System.out.println("----------------------------------------");
+    }
+
+    private static void flushRender() {
+        System.out.print(renderBuffer);
+        renderBuffer.setLength(0);
     }
 
     private static String getStringInput(String prompt) {
@@ -236,46 +630,1801 @@ public class ContactManagementSystem {
 
         return input;
     }
+}
+
+// The contact engine behind the console and batch front ends. Every change
+// runs under the write lock of a StampedLock and updates the map, the
+// indexes and the store together, so changes are atomic and totally ordered.
+// Lookups by id first try an optimistic read with no locking at all;
+// searches and listings share the read lock and never block each other.
+// Each index is built on the first read that needs it, under the write lock.
+class ContactDirectory implements Closeable {
+    private final StampedLock lock = new StampedLock();
+    // Keyed by stable contact id; iteration stays in insertion order.
+    private final LinkedHashMap<Integer, Contact> contacts = new LinkedHashMap<>();
+    private final ContactArena arena = new ContactArena();
+    private final ContactSearchIndex searchIndex = new ContactSearchIndex(contacts);
+    private final PhoneTrie phoneTrie = new PhoneTrie(contacts);
+    private final DuplicateFinder duplicateFinder = new DuplicateFinder(contacts);
+    private final SortedContactIndex sortedIndex = new SortedContactIndex(contacts);
+    private ContactStore store;
+    private int nextId;
+
+    private ContactDirectory() {
+    }
+
+    static ContactDirectory open(Path path) throws IOException {
+        ContactDirectory directory = new ContactDirectory();
+        directory.store = ContactStore.open(path, directory.contacts);
+        directory.nextId = directory.store.lastId() + 1;
+        return directory;
+    }
+
+    Contact add(String name, String phoneNumber, String email) {
+        long stamp = lock.writeLock();
+        try {
+            Contact contact = new Contact(nextId++, name, phoneNumber, email, arena);
+            persist(contact);
+            contacts.put(contact.getId(), contact);
+            index(contact);
+            return contact;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Empty arguments keep the current value. Returns null for an unknown id.
+    Contact update(int id, String name, String phoneNumber, String email) {
+        long stamp = lock.writeLock();
+        try {
+            Contact previous = contacts.get(id);
+            if (previous == null) {
+                return null;
+            }
+            Contact updated = previous.withFields(name, phoneNumber, email, arena);
+            replace(previous, updated);
+            return updated;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Returns the deleted contact, or null for an unknown id.
+    Contact delete(int id) {
+        long stamp = lock.writeLock();
+        try {
+            Contact removed = contacts.get(id);
+            if (removed != null) {
+                remove(removed);
+                searchIndex.rebuildIfStale();
+            }
+            return removed;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Keeps the first contact, fills any of its empty fields from the others
+    // in order, then deletes the others. Returns null, changing nothing, if
+    // any id is unknown.
+    Contact merge(int keptId, List<Integer> otherIds) {
+        long stamp = lock.writeLock();
+        try {
+            Contact kept = contacts.get(keptId);
+            List<Contact> others = new ArrayList<>();
+            for (int id : otherIds) {
+                Contact other = contacts.get(id);
+                if (other == null || id == keptId) {
+                    return null;
+                }
+                others.add(other);
+            }
+            if (kept == null) {
+                return null;
+            }
+
+            String name = kept.getName();
+            String phoneNumber = kept.getPhoneNumber();
+            String email = kept.getEmail();
+            for (Contact other : others) {
+                name = name.isEmpty() ? other.getName() : name;
+                phoneNumber = phoneNumber.isEmpty() ? other.getPhoneNumber() : phoneNumber;
+                email = email.isEmpty() ? other.getEmail() : email;
+            }
+            Contact merged = kept.withFields(name, phoneNumber, email, arena);
+            replace(kept, merged);
+            for (Contact other : others) {
+                remove(other);
+            }
+            searchIndex.rebuildIfStale();
+            return merged;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    Contact find(int id) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Contact contact = contacts.get(id);
+                if (lock.validate(stamp)) {
+                    return contact;
+                }
+            } catch (RuntimeException e) {
+                // the map was changing underneath; retry under the lock
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return contacts.get(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    int size() {
+        long stamp = lock.tryOptimisticRead();
+        int size = contacts.size();
+        if (stamp != 0 && lock.validate(stamp)) {
+            return size;
+        }
+
+        stamp = lock.readLock();
+        try {
+            return contacts.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // A copy in insertion order; contacts never change once read, so it
+    // stays consistent however long the caller takes over it.
+    List<Contact> list() {
+        long stamp = lock.readLock();
+        try {
+            return new ArrayList<>(contacts.values());
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    List<Contact> search(String searchTerm) {
+        long stamp = readLockBuilt(searchIndex::isBuilt, searchIndex::build);
+        try {
+            return searchIndex.search(searchTerm.toLowerCase());
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    List<Contact> findByPhoneNumber(String phoneNumber) {
+        long stamp = readLockBuilt(phoneTrie::isBuilt, phoneTrie::build);
+        try {
+            return phoneTrie.exact(phoneNumber);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    List<Contact> findByPhonePrefix(String prefix, int limit) {
+        long stamp = readLockBuilt(phoneTrie::isBuilt, phoneTrie::build);
+        try {
+            return phoneTrie.withPrefix(prefix, limit);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // In name order; an empty prefix lists everyone.
+    List<Contact> findByNamePrefix(String prefix) {
+        long stamp = readLockBuilt(sortedIndex::isBuilt, sortedIndex::build);
+        try {
+            return sortedIndex.withNamePrefix(prefix);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // In name order.
+    List<Contact> findByEmailDomain(String domain) {
+        long stamp = readLockBuilt(sortedIndex::isBuilt, sortedIndex::build);
+        try {
+            return sortedIndex.atDomain(domain);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    List<Contact> possibleDuplicates(String name, String phoneNumber, String email) {
+        long stamp = readLockBuilt(duplicateFinder::isBuilt, duplicateFinder::build);
+        try {
+            return duplicateFinder.possibleDuplicates(name, phoneNumber, email);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Scans a copy, so writers are only held up while it is taken.
+    List<ArrayList<Contact>> duplicateGroups() {
+        return DuplicateFinder.findGroups(list());
+    }
+
+    void sync() {
+        long stamp = lock.writeLock();
+        try {
+            store.sync();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        long stamp = lock.writeLock();
+        try {
+            store.compactIfWasteful(contacts.values());
+            store.close();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Takes the read lock, building the index first under the write lock
+    // if nobody has yet.
+    private long readLockBuilt(BooleanSupplier isBuilt, Runnable build) {
+        long stamp = lock.readLock();
+        if (isBuilt.getAsBoolean()) {
+            return stamp;
+        }
+
+        lock.unlockRead(stamp);
+        stamp = lock.writeLock();
+        try {
+            build.run();
+        } catch (RuntimeException e) {
+            lock.unlockWrite(stamp);
+            throw e;
+        }
+        return lock.tryConvertToReadLock(stamp);
+    }
+
+    // The callers below hold the write lock. The store is written first so
+    // that a failed write leaves memory as it was.
+    private void replace(Contact previous, Contact updated) {
+        persist(updated);
+        unindex(previous);
+        contacts.put(updated.getId(), updated);
+        index(updated);
+    }
+
+    private void remove(Contact contact) {
+        try {
+            store.appendDelete(contact);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        contacts.remove(contact.getId());
+        unindex(contact);
+    }
+
+    private void persist(Contact contact) {
+        try {
+            store.append(contact);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void index(Contact contact) {
+        searchIndex.add(contact);
+        phoneTrie.add(contact);
+        duplicateFinder.add(contact);
+        sortedIndex.add(contact);
+    }
+
+    private void unindex(Contact contact) {
+        searchIndex.remove(contact);
+        phoneTrie.remove(contact);
+        duplicateFinder.remove(contact);
+        sortedIndex.remove(contact);
+    }
+}
+
+// Field checks written as single passes over the characters, so they
+// allocate nothing per call, unlike String.matches which compiles a new
+// Pattern every time.
+class ContactValidator {
+    static final String PHONE_WARNING =
+        "Warning: Phone number should contain only digits, or start with '+' and a country code.";
+    static final String EMAIL_WARNING = "Warning: Email address should look like name@example.com.";
+
+    private static final int E164_MIN_DIGITS = 7;
+    private static final int E164_MAX_DIGITS = 15;
+    private static final String EMAIL_LOCAL_SYMBOLS = "!#$%&'*+/=?^_`{|}~-";
+
+    // Plain digits, as before, or an international number.
+    static boolean isPhoneNumber(CharSequence phone) {
+        return isDigits(phone) || appendE164(phone, null);
+    }
+
+    static boolean isDigits(CharSequence text) {
+        if (text.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (!isDigit(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Appends the E.164 form ("+" then 7 to 15 digits) of a number written
+    // with its country code, such as "+44 20 7946 0958" or "0044 20 7946
+    // 0958"; spaces, dots, dashes and parentheses are dropped. Returns
+    // false and leaves out untouched for anything else. Pass a null out
+    // to only check, or reuse one builder across records to normalize a
+    // batch without allocating.
+    static boolean appendE164(CharSequence phone, StringBuilder out) {
+        int start;
+        if (phone.length() > 0 && phone.charAt(0) == '+') {
+            start = 1;
+        } else if (phone.length() > 1 && phone.charAt(0) == '0' && phone.charAt(1) == '0') {
+            start = 2;
+        } else {
+            return false;
+        }
+
+        int digits = 0;
+        for (int i = start; i < phone.length(); i++) {
+            char c = phone.charAt(i);
+            if (isDigit(c)) {
+                if (digits == 0 && c == '0') {
+                    return false;
+                }
+                digits++;
+            } else if (c != ' ' && c != '-' && c != '.' && c != '(' && c != ')') {
+                return false;
+            }
+        }
+        if (digits < E164_MIN_DIGITS || digits > E164_MAX_DIGITS) {
+            return false;
+        }
+
+        if (out != null) {
+            out.append('+');
+            for (int i = start; i < phone.length(); i++) {
+                if (isDigit(phone.charAt(i))) {
+                    out.append(phone.charAt(i));
+                }
+            }
+        }
+        return true;
+    }
+
+    // The common subset of RFC 5321: a dot-atom local part of at most 64
+    // chars, then a domain of two or more labels of letters, digits and
+    // inner hyphens.
+    static boolean isEmail(CharSequence email) {
+        int length = email.length();
+        int at = -1;
+        for (int i = 0; i < length; i++) {
+            if (email.charAt(i) == '@') {
+                if (at >= 0) {
+                    return false;
+                }
+                at = i;
+            }
+        }
+        if (at < 1 || at > 64 || length > 254) {
+            return false;
+        }
+
+        for (int i = 0; i < at; i++) {
+            char c = email.charAt(i);
+            if (c == '.') {
+                if (i == 0 || i == at - 1 || email.charAt(i - 1) == '.') {
+                    return false;
+                }
+            } else if (!isLetterOrDigit(c) && EMAIL_LOCAL_SYMBOLS.indexOf(c) < 0) {
+                return false;
+            }
+        }
+
+        int labels = 0;
+        int labelStart = at + 1;
+        for (int i = labelStart; i <= length; i++) {
+            if (i < length && email.charAt(i) != '.') {
+                char c = email.charAt(i);
+                if (!isLetterOrDigit(c) && c != '-') {
+                    return false;
+                }
+                continue;
+            }
+
+            int labelLength = i - labelStart;
+            if (labelLength == 0 || labelLength > 63
+                    || email.charAt(labelStart) == '-' || email.charAt(i - 1) == '-') {
+                return false;
+            }
+            labels++;
+            labelStart = i + 1;
+        }
+        return labels >= 2;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetterOrDigit(char c) {
+        return isDigit(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+}
+
+// Trigram inverted index over lowercased names and raw phone numbers.
+// Posting lists hold contact ids in ascending order. A query only walks
+// the shortest posting list among its trigrams and re-checks every
+// candidate with matches(), so the results are exactly those of
+// a full scan, in the same order. That re-check also lets removals be
+// lazy: stale ids stay in their lists until enough pile up to rebuild.
+// Nothing is indexed until build() is first called, so opening a large
+// store does not pay for the index up front. Searches only read, so any
+// number may run at once; changes need exclusive access.
+class ContactSearchIndex {
+    private static final int GRAM = 3;
+    private static final int MIN_STALE_TO_REBUILD = 1024;
+
+    private final Map<Integer, Contact> contacts;
+    private Map<Long, PostingList> nameGrams = new HashMap<>();
+    private Map<Long, PostingList> phoneGrams = new HashMap<>();
+    private long entries = 0;
+    private long staleEntries = 0;
+    private boolean built = false;
+
+    ContactSearchIndex(Map<Integer, Contact> contacts) {
+        this.contacts = contacts;
+    }
+
+    void add(Contact contact) {
+        if (!built) {
+            return;
+        }
+        insert(nameGrams, grams(contact.getName().toLowerCase()), contact.getId());
+        insert(phoneGrams, grams(contact.getPhoneNumber()), contact.getId());
+        rebuildIfStale();
+    }
+
+    void remove(Contact contact) {
+        if (!built) {
+            return;
+        }
+        staleEntries += grams(contact.getName().toLowerCase()).size();
+        staleEntries += grams(contact.getPhoneNumber()).size();
+    }
+
+    boolean isBuilt() {
+        return built;
+    }
+
+    static boolean matches(Contact contact, String searchTerm) {
+        return contact.getName().toLowerCase().contains(searchTerm) ||
+            contact.getPhoneNumber().contains(searchTerm);
+    }
+
+    // Terms of three chars or more need the index to have been built.
+    ArrayList<Contact> search(String searchTerm) {
+        ArrayList<Contact> results = new ArrayList<>();
+
+        // Too short to have a trigram; fall back to the plain scan.
+        if (searchTerm.length() < GRAM) {
+            for (Contact contact : contacts.values()) {
+                if (matches(contact, searchTerm)) {
+                    results.add(contact);
+                }
+            }
+            return results;
+        }
+
+        Set<Long> termGrams = grams(searchTerm);
+        PostingList names = shortestPosting(nameGrams, termGrams);
+        PostingList phones = shortestPosting(phoneGrams, termGrams);
 
-   
-    private static class Contact {
-        private String name;
-        private String phoneNumber;
-        private String email;
+        // Merge the two ascending id lists, skipping ids found in both.
+        int i = 0;
+        int j = 0;
+        while (i < names.size || j < phones.size) {
+            int id;
+            if (j == phones.size || (i < names.size && names.ids[i] < phones.ids[j])) {
+                id = names.ids[i++];
+            } else if (i == names.size || phones.ids[j] < names.ids[i]) {
+                id = phones.ids[j++];
+            } else {
+                id = names.ids[i++];
+                j++;
+            }
 
-        public Contact(String name, String phoneNumber, String email) {
-            this.name = name;
-            this.phoneNumber = phoneNumber;
-            this.email = email;
+            Contact contact = contacts.get(id);
+            if (contact != null && matches(contact, searchTerm)) {
+                results.add(contact);
+            }
         }
+        return results;
+    }
 
-        public String getName() {
-            return name;
+    private void insert(Map<Long, PostingList> postings, Set<Long> grams, int id) {
+        for (long gram : grams) {
+            if (postings.computeIfAbsent(gram, g -> new PostingList()).add(id)) {
+                entries++;
+            } else {
+                // Still there from before an update; it is live again.
+                staleEntries--;
+            }
         }
+    }
 
-        public void setName(String name) {
-            this.name = name;
+    void rebuildIfStale() {
+        if (staleEntries >= MIN_STALE_TO_REBUILD && staleEntries * 2 >= entries) {
+            build();
         }
+    }
 
-        public String getPhoneNumber() {
-            return phoneNumber;
+    void build() {
+        built = true;
+        nameGrams = new HashMap<>();
+        phoneGrams = new HashMap<>();
+        entries = 0;
+        staleEntries = 0;
+        for (Contact contact : contacts.values()) {
+            insert(nameGrams, grams(contact.getName().toLowerCase()), contact.getId());
+            insert(phoneGrams, grams(contact.getPhoneNumber()), contact.getId());
         }
+    }
 
-        public void setPhoneNumber(String phoneNumber) {
-            this.phoneNumber = phoneNumber;
+    private static PostingList shortestPosting(Map<Long, PostingList> postings, Set<Long> termGrams) {
+        PostingList shortest = null;
+        for (long gram : termGrams) {
+            PostingList posting = postings.get(gram);
+            if (posting == null) {
+                return PostingList.EMPTY;
+            }
+            if (shortest == null || posting.size < shortest.size) {
+                shortest = posting;
+            }
         }
+        return shortest;
+    }
 
-        public String getEmail() {
-            return email;
+    // Packs each run of three chars into one long key.
+    static Set<Long> grams(String text) {
+        Set<Long> grams = new HashSet<>();
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            grams.add(((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2));
         }
+        return grams;
+    }
+}
 
-        public void setEmail(String email) {
-            this.email = email;
+// Ascending, duplicate-free contact ids. New contacts always have the
+// largest id so they append; only updates insert in the middle.
+class PostingList {
+    static final PostingList EMPTY = new PostingList();
+
+    int[] ids = new int[4];
+    int size = 0;
+
+    boolean add(int id) {
+        int position = size == 0 || ids[size - 1] < id ? size : Arrays.binarySearch(ids, 0, size, id);
+        if (position < 0) {
+            position = -position - 1;
+        } else if (position < size) {
+            return false;
         }
 
-        @Override
-        public String toString() {
-            return name + " - Phone: " + phoneNumber + ", Email: " + email;
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
         }
+        System.arraycopy(ids, position, ids, position + 1, size - position);
+        ids[position] = id;
+        size++;
+        return true;
+    }
+
+    boolean remove(int id) {
+        int position = Arrays.binarySearch(ids, 0, size, id);
+        if (position < 0) {
+            return false;
+        }
+        System.arraycopy(ids, position + 1, ids, position, size - position - 1);
+        size--;
+        return true;
+    }
+}
+
+// Contacts sorted by normalized name, and by email domain then name, for
+// ordered listings and range queries: every name starting with "sm", or
+// everyone at example.com, costs O(log n + k). Each key ends with the
+// zero-padded id, so equal names stay distinct and fall in id order.
+class SortedContactIndex {
+    private final Map<Integer, Contact> contacts;
+    private final TreeMap<String, Contact> byName = new TreeMap<>();
+    private final TreeMap<String, Contact> byDomain = new TreeMap<>();
+    private boolean built = false;
+
+    SortedContactIndex(Map<Integer, Contact> contacts) {
+        this.contacts = contacts;
+    }
+
+    boolean isBuilt() {
+        return built;
+    }
+
+    void build() {
+        if (!built) {
+            built = true;
+            for (Contact contact : contacts.values()) {
+                add(contact);
+            }
+        }
+    }
+
+    void add(Contact contact) {
+        if (!built) {
+            return;
+        }
+
+        String nameKey = nameKey(contact);
+        byName.put(nameKey, contact);
+        String domain = domainOf(contact.getEmail());
+        if (domain != null) {
+            byDomain.put(domain + '\0' + nameKey, contact);
+        }
+    }
+
+    void remove(Contact contact) {
+        if (!built) {
+            return;
+        }
+
+        String nameKey = nameKey(contact);
+        byName.remove(nameKey);
+        String domain = domainOf(contact.getEmail());
+        if (domain != null) {
+            byDomain.remove(domain + '\0' + nameKey);
+        }
+    }
+
+    ArrayList<Contact> withNamePrefix(String prefix) {
+        String from = DuplicateFinder.normalizeName(prefix);
+        return new ArrayList<>(byName.subMap(from, true, from + Character.MAX_VALUE, false).values());
+    }
+
+    // Accepts "example.com" or "@example.com", in any case.
+    ArrayList<Contact> atDomain(String domain) {
+        String from = domain.trim().toLowerCase();
+        if (from.startsWith("@")) {
+            from = from.substring(1);
+        }
+        return new ArrayList<>(byDomain.subMap(from + '\0', true, from + '\1', false).values());
+    }
+
+    static String domainOf(String email) {
+        int at = email.lastIndexOf('@');
+        String domain = at < 0 ? "" : email.substring(at + 1).trim().toLowerCase();
+        return domain.isEmpty() ? null : domain;
+    }
+
+    private static String nameKey(Contact contact) {
+        String id = Integer.toString(contact.getId());
+        return DuplicateFinder.normalizeName(contact.getName()) + '\0' + "0000000000".substring(id.length()) + id;
+    }
+}
+
+// Finds contacts that are probably the same person. Each contact gets
+// blocking keys: the last ten digits of its phone number, its lowercased
+// email and its name with the words sorted. Contacts sharing a key are
+// candidates, so the add-time check is a few hash lookups. The full scan
+// also catches near-identical names with MinHash over name trigrams:
+// names whose signatures agree on any band are compared exactly. The
+// scan runs in parallel and joins the matches with union-find.
+class DuplicateFinder {
+    private static final int MIN_PHONE_DIGITS = 7;
+    private static final int PHONE_KEY_DIGITS = 10;
+    private static final int MINHASHES = 16;
+    private static final int BAND_ROWS = 2;
+    private static final double NAME_SIMILARITY = 0.6;
+
+    private final Map<Integer, Contact> contacts;
+    private final Map<String, PostingList> keyed = new HashMap<>();
+    private boolean built = false;
+
+    DuplicateFinder(Map<Integer, Contact> contacts) {
+        this.contacts = contacts;
+    }
+
+    void add(Contact contact) {
+        if (built) {
+            for (String key : keys(contact.getName(), contact.getPhoneNumber(), contact.getEmail())) {
+                keyed.computeIfAbsent(key, k -> new PostingList()).add(contact.getId());
+            }
+        }
+    }
+
+    void remove(Contact contact) {
+        if (built) {
+            for (String key : keys(contact.getName(), contact.getPhoneNumber(), contact.getEmail())) {
+                PostingList posting = keyed.get(key);
+                if (posting != null && posting.remove(contact.getId()) && posting.size == 0) {
+                    keyed.remove(key);
+                }
+            }
+        }
+    }
+
+    boolean isBuilt() {
+        return built;
+    }
+
+    void build() {
+        if (!built) {
+            built = true;
+            for (Contact contact : contacts.values()) {
+                add(contact);
+            }
+        }
+    }
+
+    // The oldest contact sharing each key with the given fields. Needs the
+    // key index to have been built.
+    ArrayList<Contact> possibleDuplicates(String name, String phoneNumber, String email) {
+        ArrayList<Contact> matches = new ArrayList<>();
+        for (String key : keys(name, phoneNumber, email)) {
+            PostingList posting = keyed.get(key);
+            Contact match = posting == null ? null : contacts.get(posting.ids[0]);
+            if (match != null && !matches.contains(match)) {
+                matches.add(match);
+            }
+        }
+        return matches;
+    }
+
+    // Groups of two or more likely duplicates, each in id order, ordered
+    // by their oldest contact.
+    static ArrayList<ArrayList<Contact>> findGroups(List<Contact> contactList) {
+        Contact[] all = contactList.toArray(new Contact[0]);
+        int count = all.length;
+
+        // Read the fields up front so the parallel passes below only touch
+        // plain arrays.
+        String[] names = new String[count];
+        String[] phoneNumbers = new String[count];
+        String[] emails = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = normalizeName(all[i].getName());
+            phoneNumbers[i] = all[i].getPhoneNumber();
+            emails[i] = all[i].getEmail();
+        }
+
+        int[] parents = new int[count];
+        for (int i = 0; i < count; i++) {
+            parents[i] = i;
+        }
+        linkSharedKeys(count, i -> phoneKey(phoneNumbers[i]), null, parents);
+        linkSharedKeys(count, i -> emailKey(emails[i]), null, parents);
+        linkSharedKeys(count, i -> names[i].isEmpty() ? null : nameKey(names[i]), null, parents);
+
+        long[][] signatures = new long[count][];
+        IntStream.range(0, count).parallel().forEach(i -> signatures[i] = minHash(names[i]));
+        for (int band = 0; band < MINHASHES / BAND_ROWS; band++) {
+            int first = band * BAND_ROWS;
+            linkSharedKeys(count, i -> signatures[i] == null ? null : bandKey(signatures[i], first),
+                (i, j) -> similarity(names[i], names[j]) >= NAME_SIMILARITY, parents);
+        }
+
+        Map<Integer, ArrayList<Contact>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            groups.computeIfAbsent(find(parents, i), root -> new ArrayList<>()).add(all[i]);
+        }
+        ArrayList<ArrayList<Contact>> duplicates = new ArrayList<>();
+        for (ArrayList<Contact> group : groups.values()) {
+            if (group.size() > 1) {
+                duplicates.add(group);
+            }
+        }
+        return duplicates;
+    }
+
+    // Links every record to the first record with the same key, when the
+    // optional check accepts the pair. Keys are computed and the first
+    // holder chosen in parallel; only the unions run on this thread.
+    private static void linkSharedKeys(int count, IntFunction<Object> keyOf, BiPredicate<Integer, Integer> check,
+            int[] parents) {
+        Object[] keys = new Object[count];
+        ConcurrentHashMap<Object, Integer> firstHolders = new ConcurrentHashMap<>();
+        IntStream.range(0, count).parallel().forEach(i -> {
+            keys[i] = keyOf.apply(i);
+            if (keys[i] != null) {
+                firstHolders.merge(keys[i], i, Math::min);
+            }
+        });
+
+        int[] partners = new int[count];
+        IntStream.range(0, count).parallel().forEach(i -> {
+            int holder = keys[i] == null ? i : firstHolders.get(keys[i]);
+            partners[i] = holder != i && (check == null || check.test(holder, i)) ? holder : -1;
+        });
+
+        for (int i = 0; i < count; i++) {
+            if (partners[i] >= 0) {
+                parents[find(parents, i)] = find(parents, partners[i]);
+            }
+        }
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private static List<String> keys(String name, String phoneNumber, String email) {
+        List<String> keys = new ArrayList<>(3);
+        String phone = phoneKey(phoneNumber);
+        if (phone != null) {
+            keys.add("p" + phone);
+        }
+        String mail = emailKey(email);
+        if (mail != null) {
+            keys.add("e" + mail);
+        }
+        String words = nameKey(name);
+        if (!words.isEmpty()) {
+            keys.add("n" + words);
+        }
+        return keys;
+    }
+
+    static String phoneKey(String phoneNumber) {
+        String digits = PhoneTrie.normalize(phoneNumber);
+        return digits.length() < MIN_PHONE_DIGITS
+            ? null
+            : digits.substring(Math.max(0, digits.length() - PHONE_KEY_DIGITS));
+    }
+
+    static String emailKey(String email) {
+        String key = email.trim().toLowerCase();
+        return key.indexOf('@') > 0 ? key : null;
+    }
+
+    // "Smith,  John" and "john smith" both become "john smith".
+    static String nameKey(String name) {
+        String[] words = normalizeName(name.replace(',', ' ')).split(" ");
+        Arrays.sort(words);
+        return String.join(" ", words).trim();
+    }
+
+    // Lowercased, with each run of whitespace reduced to one space.
+    static String normalizeName(String name) {
+        // Whitespace is judged by Character.isWhitespace throughout, so
+        // leading and trailing U+3000 and friends go too, not just what
+        // trim() strips.
+        String lower = name.toLowerCase();
+        StringBuilder normalized = new StringBuilder(lower.length());
+        boolean space = false;
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = normalized.length() > 0;
+            } else {
+                if (space) {
+                    normalized.append(' ');
+                    space = false;
+                }
+                normalized.append(c);
+            }
+        }
+        return normalized.toString();
+    }
+
+    private static long[] minHash(String name) {
+        Set<Long> grams = ContactSearchIndex.grams(name);
+        if (grams.isEmpty()) {
+            return null;
+        }
+
+        long[] signature = new long[MINHASHES];
+        Arrays.fill(signature, Long.MAX_VALUE);
+        for (long gram : grams) {
+            for (int k = 0; k < MINHASHES; k++) {
+                signature[k] = Math.min(signature[k], mix(gram + k * 0x9E3779B97F4A7C15L));
+            }
+        }
+        return signature;
+    }
+
+    private static Long bandKey(long[] signature, int first) {
+        long key = first;
+        for (int i = first; i < first + BAND_ROWS; i++) {
+            key = mix(key * 31 + signature[i]);
+        }
+        return key;
+    }
+
+    // Jaccard similarity of the two names' trigram sets.
+    private static double similarity(String a, String b) {
+        Set<Long> gramsA = ContactSearchIndex.grams(a);
+        Set<Long> gramsB = ContactSearchIndex.grams(b);
+        int shared = 0;
+        for (long gram : gramsA) {
+            if (gramsB.contains(gram)) {
+                shared++;
+            }
+        }
+        return (double) shared / (gramsA.size() + gramsB.size() - shared);
+    }
+
+    // SplitMix64 finalizer.
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
+
+// Radix tree over phone numbers with every non-digit stripped: chains of
+// single-child nodes are folded into one edge, so a node exists only where
+// numbers branch or end. Nodes are ids into parallel int arrays, children
+// form a sibling list ordered by digit, edge labels are ranges of a shared
+// digit array, and the contacts owning a number are chained ids. Like the
+// search index, it is only filled once build() is called, and lookups need
+// it built.
+class PhoneTrie {
+    // Node 0 is the root and is never a child, and owner entry 0 is never
+    // used, so 0 doubles as "none" in every link.
+    private static final int NONE = 0;
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    private final Map<Integer, Contact> contacts;
+    private int[] labelStart = new int[1024];
+    private int[] labelLength = new int[1024];
+    private int[] firstChild = new int[1024];
+    private int[] nextSibling = new int[1024];
+    private int[] firstOwner = new int[1024];
+    private int nodeCount = 1;
+    // Freed nodes are chained through nextSibling, freed entries through nextOwner.
+    private int freeNode = NONE;
+    private byte[] labels = new byte[4096];
+    private int labelsUsed = 0;
+    // Label digits no live node points at any more; reclaimed by compacting.
+    private int labelGarbage = 0;
+    private int[] ownerIds = new int[1024];
+    private int[] nextOwner = new int[1024];
+    private int ownerCount = 1;
+    private int freeOwner = NONE;
+    private boolean built = false;
+
+    PhoneTrie(Map<Integer, Contact> contacts) {
+        this.contacts = contacts;
+    }
+
+    void add(Contact contact) {
+        if (!built) {
+            return;
+        }
+
+        String digits = normalize(contact.getPhoneNumber());
+        if (digits.isEmpty()) {
+            return;
+        }
+
+        int node = 0;
+        int i = 0;
+        while (i < digits.length()) {
+            int child = child(node, digits.charAt(i));
+            if (child == NONE) {
+                int leaf = newNode(appendLabel(digits, i), digits.length() - i);
+                link(node, leaf);
+                node = leaf;
+                break;
+            }
+
+            int matched = match(child, digits, i);
+            if (matched < labelLength[child]) {
+                child = split(node, child, matched);
+            }
+            node = child;
+            i += matched;
+        }
+        addOwner(node, contact.getId());
+    }
+
+    void remove(Contact contact) {
+        if (!built) {
+            return;
+        }
+
+        String digits = normalize(contact.getPhoneNumber());
+        if (digits.isEmpty()) {
+            return;
+        }
+
+        // Every edge consumes at least one digit, so the path fits.
+        int[] path = new int[digits.length() + 1];
+        int depth = 0;
+        int node = 0;
+        for (int i = 0; i < digits.length(); ) {
+            int child = child(node, digits.charAt(i));
+            if (child == NONE || match(child, digits, i) < labelLength[child]) {
+                return;
+            }
+            node = child;
+            i += labelLength[child];
+            path[++depth] = node;
+        }
+        if (!removeOwner(node, contact.getId()) || firstOwner[node] != NONE || depth == 0) {
+            return;
+        }
+
+        // Keep every node other than the root either owned or branching.
+        int parent = path[depth - 1];
+        if (firstChild[node] == NONE) {
+            unlink(parent, node);
+            labelGarbage += labelLength[node];
+            freeNode(node);
+            if (depth > 1 && firstOwner[parent] == NONE && hasOneChild(parent)) {
+                merge(path[depth - 2], parent);
+            }
+        } else if (hasOneChild(node)) {
+            merge(parent, node);
+        }
+
+        if (labelsUsed > 4096 && labelGarbage > labelsUsed / 2) {
+            compactLabels();
+        }
+    }
+
+    ArrayList<Contact> exact(String number) {
+        ArrayList<Contact> results = new ArrayList<>();
+        String digits = normalize(number);
+        int node = digits.isEmpty() ? -1 : locate(digits, false);
+        if (node >= 0) {
+            addOwners(node, Integer.MAX_VALUE, results);
+        }
+        return results;
+    }
+
+    // Up to limit contacts whose number starts with the prefix, in
+    // ascending number order.
+    ArrayList<Contact> withPrefix(String prefix, int limit) {
+        ArrayList<Contact> results = new ArrayList<>();
+        int node = locate(normalize(prefix), true);
+        if (node >= 0) {
+            collect(node, limit, results);
+        }
+        return results;
+    }
+
+    private void collect(int node, int limit, ArrayList<Contact> results) {
+        addOwners(node, limit, results);
+        for (int child = firstChild[node]; child != NONE && results.size() < limit; child = nextSibling[child]) {
+            collect(child, limit, results);
+        }
+    }
+
+    private void addOwners(int node, int limit, ArrayList<Contact> results) {
+        for (int entry = firstOwner[node]; entry != NONE && results.size() < limit; entry = nextOwner[entry]) {
+            results.add(contacts.get(ownerIds[entry]));
+        }
+    }
+
+    boolean isBuilt() {
+        return built;
+    }
+
+    void build() {
+        if (!built) {
+            built = true;
+            for (Contact contact : contacts.values()) {
+                add(contact);
+            }
+        }
+    }
+
+    // The node spelling out digits, or -1. A prefix may also end part way
+    // along an edge, which gives the node below it.
+    private int locate(String digits, boolean prefix) {
+        int node = 0;
+        int i = 0;
+        while (i < digits.length()) {
+            int child = child(node, digits.charAt(i));
+            if (child == NONE) {
+                return -1;
+            }
+
+            int matched = match(child, digits, i);
+            if (matched < labelLength[child]) {
+                return prefix && i + matched == digits.length() ? child : -1;
+            }
+            node = child;
+            i += matched;
+        }
+        return node;
+    }
+
+    private int child(int node, char digit) {
+        for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+            int first = labels[labelStart[child]];
+            if (first >= digit - '0') {
+                return first == digit - '0' ? child : NONE;
+            }
+        }
+        return NONE;
+    }
+
+    // How many digits of the child's label match digits from position i.
+    private int match(int child, String digits, int i) {
+        int start = labelStart[child];
+        int length = Math.min(labelLength[child], digits.length() - i);
+        int matched = 0;
+        while (matched < length && labels[start + matched] == digits.charAt(i + matched) - '0') {
+            matched++;
+        }
+        return matched;
+    }
+
+    // Puts a new node owning the first at digits of the child's label
+    // between the child and its parent, and returns it.
+    private int split(int parent, int child, int at) {
+        int middle = newNode(labelStart[child], at);
+        replaceChild(parent, child, middle);
+        labelStart[child] += at;
+        labelLength[child] -= at;
+        nextSibling[child] = NONE;
+        firstChild[middle] = child;
+        return middle;
+    }
+
+    // Folds an unowned node into its only child.
+    private void merge(int parent, int node) {
+        int child = firstChild[node];
+        int start = labelStart[node];
+        int length = labelLength[node] + labelLength[child];
+        // Labels split apart are still adjacent; others need fresh space.
+        if (start + labelLength[node] != labelStart[child]) {
+            int copy = reserveLabel(length);
+            System.arraycopy(labels, start, labels, copy, labelLength[node]);
+            System.arraycopy(labels, labelStart[child], labels, copy + labelLength[node], labelLength[child]);
+            labelGarbage += length;
+            start = copy;
+        }
+        labelStart[child] = start;
+        labelLength[child] = length;
+        replaceChild(parent, node, child);
+        freeNode(node);
+    }
+
+    private boolean hasOneChild(int node) {
+        return firstChild[node] != NONE && nextSibling[firstChild[node]] == NONE;
+    }
+
+    // Inserts node among the parent's children, keeping them in digit order.
+    private void link(int parent, int node) {
+        int first = labels[labelStart[node]];
+        int previous = NONE;
+        int next = firstChild[parent];
+        while (next != NONE && labels[labelStart[next]] < first) {
+            previous = next;
+            next = nextSibling[next];
+        }
+        nextSibling[node] = next;
+        if (previous == NONE) {
+            firstChild[parent] = node;
+        } else {
+            nextSibling[previous] = node;
+        }
+    }
+
+    private void unlink(int parent, int node) {
+        replaceChild(parent, node, nextSibling[node]);
+    }
+
+    // Puts replacement where child was in the parent's sibling list. When
+    // replacement is child's next sibling, this simply drops child.
+    private void replaceChild(int parent, int child, int replacement) {
+        if (replacement != nextSibling[child] && replacement != NONE) {
+            nextSibling[replacement] = nextSibling[child];
+        }
+        if (firstChild[parent] == child) {
+            firstChild[parent] = replacement;
+            return;
+        }
+        int previous = firstChild[parent];
+        while (nextSibling[previous] != child) {
+            previous = nextSibling[previous];
+        }
+        nextSibling[previous] = replacement;
+    }
+
+    private void addOwner(int node, int id) {
+        int entry = freeOwner;
+        if (entry != NONE) {
+            freeOwner = nextOwner[entry];
+        } else {
+            if (ownerCount == ownerIds.length) {
+                int capacity = grow(ownerCount);
+                ownerIds = Arrays.copyOf(ownerIds, capacity);
+                nextOwner = Arrays.copyOf(nextOwner, capacity);
+            }
+            entry = ownerCount++;
+        }
+        ownerIds[entry] = id;
+        nextOwner[entry] = NONE;
+
+        // Appended, so owners come back in the order they were added.
+        if (firstOwner[node] == NONE) {
+            firstOwner[node] = entry;
+        } else {
+            int last = firstOwner[node];
+            while (nextOwner[last] != NONE) {
+                last = nextOwner[last];
+            }
+            nextOwner[last] = entry;
+        }
+    }
+
+    private boolean removeOwner(int node, int id) {
+        int previous = NONE;
+        for (int entry = firstOwner[node]; entry != NONE; previous = entry, entry = nextOwner[entry]) {
+            if (ownerIds[entry] == id) {
+                if (previous == NONE) {
+                    firstOwner[node] = nextOwner[entry];
+                } else {
+                    nextOwner[previous] = nextOwner[entry];
+                }
+                nextOwner[entry] = freeOwner;
+                freeOwner = entry;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int newNode(int start, int length) {
+        int node = freeNode;
+        if (node != NONE) {
+            freeNode = nextSibling[node];
+        } else {
+            if (nodeCount == firstChild.length) {
+                int capacity = grow(nodeCount);
+                labelStart = Arrays.copyOf(labelStart, capacity);
+                labelLength = Arrays.copyOf(labelLength, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                nextSibling = Arrays.copyOf(nextSibling, capacity);
+                firstOwner = Arrays.copyOf(firstOwner, capacity);
+            }
+            node = nodeCount++;
+        }
+        labelStart[node] = start;
+        labelLength[node] = length;
+        firstChild[node] = NONE;
+        nextSibling[node] = NONE;
+        firstOwner[node] = NONE;
+        return node;
+    }
+
+    private void freeNode(int node) {
+        nextSibling[node] = freeNode;
+        freeNode = node;
+    }
+
+    private int appendLabel(String digits, int from) {
+        int start = reserveLabel(digits.length() - from);
+        for (int i = from; i < digits.length(); i++) {
+            labels[start + i - from] = (byte) (digits.charAt(i) - '0');
+        }
+        return start;
+    }
+
+    private int reserveLabel(int length) {
+        if ((long) labelsUsed + length > labels.length) {
+            labels = Arrays.copyOf(labels, grow(labels.length, (long) labelsUsed + length));
+        }
+        labelsUsed += length;
+        return labelsUsed - length;
+    }
+
+    // Copies every live label into a fresh array, dropping the garbage.
+    private void compactLabels() {
+        byte[] compacted = new byte[Math.max(4096, (labelsUsed - labelGarbage) * 2)];
+        labelsUsed = copyLabels(0, compacted, 0);
+        labels = compacted;
+        labelGarbage = 0;
+    }
+
+    private int copyLabels(int node, byte[] target, int used) {
+        for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+            System.arraycopy(labels, labelStart[child], target, used, labelLength[child]);
+            labelStart[child] = used;
+            used = copyLabels(child, target, used + labelLength[child]);
+        }
+        return used;
+    }
+
+    private static int grow(int length) {
+        return grow(length, length + 1L);
+    }
+
+    private static int grow(int length, long needed) {
+        if (needed > MAX_CAPACITY) {
+            throw new IllegalStateException("Phone index is full");
+        }
+        return (int) Math.min(MAX_CAPACITY, Math.max(needed, length * 2L));
+    }
+
+    static String normalize(String phoneNumber) {
+        StringBuilder digits = new StringBuilder(phoneNumber.length());
+        for (int i = 0; i < phoneNumber.length(); i++) {
+            char c = phoneNumber.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            }
+        }
+        return digits.toString();
+    }
+}
+
+// Append-only contact file. Every add or update appends the contact's
+// full record and every delete appends a tombstone, each framed as
+// [length][crc32][payload]. The file starts with a header holding the
+// length last made durable by sync(). A crash can persist unsynced writes
+// partly or out of order, so damage past that length is a torn tail and
+// is cut off on open; damage before it is corruption, and the file is then
+// left alone and not opened. Opening maps
+// the file and only walks the record headers; field text is decoded from
+// the mapping when first read. It still makes a Contact per live record,
+// so open time grows with the file (about 2 s for 5M contacts).
+class ContactStore implements Closeable {
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int HEADER_BYTES = 8;
+    private static final int MAGIC = 0x434E5431;
+    // [magic][unused][synced length]
+    private static final int FILE_HEADER_BYTES = 16;
+    private static final int SYNCED_OFFSET = 8;
+    private static final long MIN_COMPACT_BYTES = 1 << 20;
+
+    private final Path path;
+    private final CRC32 checksum = new CRC32();
+    private FileChannel channel;
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private long fileBytes;
+    private long liveBytes;
+    private int lastId;
+
+    private ContactStore(Path path) {
+        this.path = path;
+    }
+
+    static ContactStore open(Path path, Map<Integer, Contact> contacts) throws IOException {
+        ContactStore store = new ContactStore(path);
+        store.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        long size = store.channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Contact file is too large to map: " + path);
+        }
+
+        // A header shorter than its full size was never synced, and no
+        // record can have been written after it.
+        if (size < FILE_HEADER_BYTES) {
+            writeHeader(store.channel);
+            size = FILE_HEADER_BYTES;
+        }
+
+        MappedByteBuffer mapped = store.channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (mapped.getInt(0) != MAGIC) {
+            store.channel.close();
+            throw new IOException("not a contact file");
+        }
+        long synced = mapped.getLong(SYNCED_OFFSET);
+        int position = store.load(mapped, (int) size, contacts);
+        if (position < synced) {
+            store.channel.close();
+            throw new IOException("damaged or missing record at byte " + position
+                + ", before the last synced length " + synced + "; not opening it rather than losing data");
+        }
+        if (position < size) {
+            store.channel.truncate(position);
+            store.channel.force(false);
+        }
+        store.channel.position(position);
+        store.fileBytes = position;
+        return store;
+    }
+
+    // Returns the end of the last intact record.
+    private int load(ByteBuffer mapped, int size, Map<Integer, Contact> contacts) {
+        int position = FILE_HEADER_BYTES;
+        while (position + HEADER_BYTES <= size) {
+            int length = mapped.getInt(position);
+            if (length < 5 || length > size - position - HEADER_BYTES) {
+                break;
+            }
+            checksum.reset();
+            checksum.update(mapped.slice(position + HEADER_BYTES, length));
+            if ((int) checksum.getValue() != mapped.getInt(position + 4)) {
+                break;
+            }
+
+            int recordBytes = HEADER_BYTES + length;
+            int id = mapped.getInt(position + HEADER_BYTES + 1);
+            lastId = Math.max(lastId, id);
+            Contact previous = mapped.get(position + HEADER_BYTES) == PUT
+                ? contacts.put(id, new Contact(id, mapped, position + HEADER_BYTES + 5, recordBytes))
+                : contacts.remove(id);
+            if (previous != null) {
+                liveBytes -= previous.storedBytes;
+            }
+            if (mapped.get(position + HEADER_BYTES) == PUT) {
+                liveBytes += recordBytes;
+            }
+            position += recordBytes;
+        }
+        return position;
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+        header.putInt(MAGIC).putInt(0).putLong(FILE_HEADER_BYTES).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(false);
+    }
+
+    // Written after each force, so it never claims more than is durable.
+    // It becomes durable itself with the next force; until then a crash
+    // leaves the previous, smaller length, which only errs towards
+    // treating damage as a torn tail.
+    private void writeSyncedLength() throws IOException {
+        ByteBuffer synced = ByteBuffer.allocate(8).putLong(fileBytes).flip();
+        while (synced.hasRemaining()) {
+            channel.write(synced, SYNCED_OFFSET + synced.position());
+        }
+    }
+
+    // The highest id ever written, including deleted contacts.
+    int lastId() {
+        return lastId;
+    }
+
+    // Replaces the contact's previous record, if it has one.
+    void append(Contact contact) throws IOException {
+        liveBytes -= contact.storedBytes;
+        contact.storedBytes = writeRecord(PUT, contact);
+        liveBytes += contact.storedBytes;
+    }
+
+    void appendDelete(Contact contact) throws IOException {
+        liveBytes -= contact.storedBytes;
+        writeRecord(DELETE, contact);
+    }
+
+    private int writeRecord(byte type, Contact contact) throws IOException {
+        byte[][] fields = type == PUT
+            ? new byte[][] { encode(contact.getName()), encode(contact.getPhoneNumber()), encode(contact.getEmail()) }
+            : new byte[0][];
+        int payloadBytes = 5;
+        for (byte[] field : fields) {
+            payloadBytes += 4 + field.length;
+        }
+        if (pending.remaining() < HEADER_BYTES + payloadBytes) {
+            writePending();
+            if (pending.capacity() < HEADER_BYTES + payloadBytes) {
+                pending = ByteBuffer.allocate(HEADER_BYTES + payloadBytes);
+            }
+        }
+
+        int start = pending.position();
+        pending.position(start + HEADER_BYTES);
+        pending.put(type);
+        pending.putInt(contact.getId());
+        for (byte[] field : fields) {
+            pending.putInt(field.length);
+            pending.put(field);
+        }
+        checksum.reset();
+        checksum.update(pending.array(), start + HEADER_BYTES, payloadBytes);
+        pending.putInt(start, payloadBytes);
+        pending.putInt(start + 4, (int) checksum.getValue());
+        fileBytes += HEADER_BYTES + payloadBytes;
+        return HEADER_BYTES + payloadBytes;
+    }
+
+    // Makes every record appended so far durable.
+    void sync() throws IOException {
+        writePending();
+        channel.force(false);
+        writeSyncedLength();
+    }
+
+    private void writePending() throws IOException {
+        pending.flip();
+        try {
+            while (pending.hasRemaining()) {
+                channel.write(pending);
+            }
+        } finally {
+            pending.clear();
+        }
+    }
+
+    // Rewrites the file with only the latest record of each live contact
+    // once superseded records and tombstones make up more than half of it.
+    // The new file is written aside and renamed over the old one, so a
+    // crash part way leaves the old file intact.
+    void compactIfWasteful(Collection<Contact> contacts) throws IOException {
+        if (fileBytes < MIN_COMPACT_BYTES || liveBytes * 2 > fileBytes) {
+            return;
+        }
+
+        sync();
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        FileChannel previous = channel;
+        channel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        writeHeader(channel);
+        channel.position(FILE_HEADER_BYTES);
+        fileBytes = FILE_HEADER_BYTES;
+        liveBytes = 0;
+        for (Contact contact : contacts) {
+            contact.storedBytes = 0;
+            append(contact);
+        }
+        sync();
+        channel.force(false);
+        channel.close();
+        previous.close();
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        channel.force(false);
+        channel.close();
+    }
+
+    private static byte[] encode(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
+
+// Storage for the fields of the contacts one directory creates. Rather
+// than three Strings apiece, each contact's fields are written as UTF-8
+// into large chunks, with the email domain replaced by its index in this
+// arena's table of interned domains:
+//   varint name length, name, varint phone length, phone,
+//   varint local-part length, local part, varint (domain index + 1) or 0
+// Chunks are only reachable through the contacts packed into them, so a
+// chunk is reclaimed by the garbage collector once all of them are gone.
+// Interned domains live as long as the directory. Only the directory's
+// writer stores into it, under its write lock; readers decode without
+// locking.
+class ContactArena {
+    private static final int CHUNK_BYTES = 1 << 20;
+    private static final int OWN_CHUNK_BYTES = CHUNK_BYTES / 16;
+
+    private byte[] chunk = new byte[CHUNK_BYTES];
+    private int used = 0;
+    // The array the last store() wrote into.
+    private byte[] stored;
+    private final Map<String, Integer> domainIndex = new HashMap<>();
+    // Grown by copying and republished after each new domain, so readers
+    // need no lock.
+    private volatile String[] domains = new String[64];
+    private int domainCount = 0;
+
+    // Returns the record's offset in storedChunk().
+    int store(String name, String phoneNumber, String email) {
+        int at = email.lastIndexOf('@');
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] phoneBytes = phoneNumber.getBytes(StandardCharsets.UTF_8);
+        byte[] localBytes = (at < 0 ? email : email.substring(0, at)).getBytes(StandardCharsets.UTF_8);
+        int domain = at < 0 ? 0 : intern(email.substring(at + 1)) + 1;
+        int length = varintBytes(nameBytes.length) + nameBytes.length
+            + varintBytes(phoneBytes.length) + phoneBytes.length
+            + varintBytes(localBytes.length) + localBytes.length
+            + varintBytes(domain);
+
+        // Big records get an array of their own instead of wasting the rest
+        // of a shared chunk.
+        int offset;
+        if (length > OWN_CHUNK_BYTES) {
+            stored = new byte[length];
+            offset = 0;
+        } else {
+            if (used + length > CHUNK_BYTES) {
+                chunk = new byte[CHUNK_BYTES];
+                used = 0;
+            }
+            stored = chunk;
+            offset = used;
+            used += length;
+        }
+
+        int position = offset;
+        position = putField(stored, position, nameBytes);
+        position = putField(stored, position, phoneBytes);
+        position = putField(stored, position, localBytes);
+        putVarint(stored, position, domain);
+        return offset;
+    }
+
+    byte[] storedChunk() {
+        return stored;
+    }
+
+    // The field-th field (0 name, 1 phone, 2 email) of the record at offset.
+    String field(byte[] chunk, int offset, int field) {
+        int position = offset;
+        for (int i = 0; i < field; i++) {
+            int length = varint(chunk, position);
+            position += varintBytes(length) + length;
+        }
+
+        int length = varint(chunk, position);
+        position += varintBytes(length);
+        String value = new String(chunk, position, length, StandardCharsets.UTF_8);
+        if (field < 2) {
+            return value;
+        }
+
+        int domain = varint(chunk, position + length);
+        return domain == 0 ? value : value + '@' + domains[domain - 1];
+    }
+
+    private int intern(String domain) {
+        Integer index = domainIndex.get(domain);
+        if (index != null) {
+            return index;
+        }
+
+        String[] table = domains;
+        if (domainCount == table.length) {
+            table = Arrays.copyOf(table, table.length * 2);
+        }
+        table[domainCount] = domain;
+        domains = table;
+        domainIndex.put(domain, domainCount);
+        return domainCount++;
+    }
+
+    private static int putField(byte[] target, int position, byte[] bytes) {
+        position = putVarint(target, position, bytes.length);
+        System.arraycopy(bytes, 0, target, position, bytes.length);
+        return position + bytes.length;
+    }
+
+    private static int putVarint(byte[] target, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            target[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[position++] = (byte) value;
+        return position;
+    }
+
+    private static int varint(byte[] source, int position) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = source[position++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int varintBytes(int value) {
+        int bytes = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+}
+
+// A contact's fields never change once it is published; an update puts a
+// new Contact with the same id in its place, so a reader holding one always
+// sees a consistent record without locking.
+class Contact {
+    private final int id;
+    // Fields are decoded on every read and never cached, either from a
+    // record in an arena chunk or, for contacts opened from the store and
+    // not changed since, straight from the store's mapped record.
+    private final ContactArena arena;
+    private final byte[] chunk;
+    private final ByteBuffer stored;
+    private final int offset;
+    // Bookkeeping for ContactStore: the size of this contact's latest record.
+    int storedBytes;
+
+    Contact(int id, String name, String phoneNumber, String email, ContactArena arena) {
+        this.id = id;
+        this.arena = arena;
+        this.offset = arena.store(name, phoneNumber, email);
+        this.chunk = arena.storedChunk();
+        this.stored = null;
+    }
+
+    Contact(int id, ByteBuffer stored, int storedOffset, int storedBytes) {
+        this.id = id;
+        this.arena = null;
+        this.chunk = null;
+        this.stored = stored;
+        this.offset = storedOffset;
+        this.storedBytes = storedBytes;
+    }
+
+    // A copy with every non-empty argument replacing the current value.
+    Contact withFields(String name, String phoneNumber, String email, ContactArena arena) {
+        Contact updated = new Contact(id,
+            name.isEmpty() ? getName() : name,
+            phoneNumber.isEmpty() ? getPhoneNumber() : phoneNumber,
+            email.isEmpty() ? getEmail() : email,
+            arena);
+        updated.storedBytes = storedBytes;
+        return updated;
+    }
+
+    // Store records hold each field as [int length][UTF-8 bytes]. Absolute
+    // reads leave the shared buffer's position alone.
+    private String field(int field) {
+        if (stored == null) {
+            return arena.field(chunk, offset, field);
+        }
+
+        int position = offset;
+        for (int i = 0; i < field; i++) {
+            position += 4 + stored.getInt(position);
+        }
+        byte[] bytes = new byte[stored.getInt(position)];
+        stored.get(position + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return field(0);
+    }
+
+    public String getPhoneNumber() {
+        return field(1);
+    }
+
+    public String getEmail() {
+        return field(2);
+    }
+
+    @Override
+    public String toString() {
+        return "#" + id + " " + getName() + " - Phone: " + getPhoneNumber() + ", Email: " + getEmail();
     }
 }
@@ -1,9 +1,11 @@
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.table.AbstractTableModel;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class InventoryManagementSystem extends JFrame {
     private static class InventoryItem {
@@ -27,16 +29,86 @@ public class InventoryManagementSystem extends JFrame {
         public void setName(String name) { this.name = name; }
         public void setQuantity(int quantity) { this.quantity = quantity; }
         public void setPrice(double price) { this.price = price; }
+    }
+    
+    // Items in table row order, plus the row each id sits in, so lookups by
+    // id and deletes are O(1). A delete moves the last item into the freed
+    // row instead of shifting everything after it up.
+    private static class InventoryStore {
+        private final List<InventoryItem> items = new ArrayList<>();
+        private final Map<String, Integer> rows = new HashMap<>();
+        
+        public int size() { return items.size(); }
+        public InventoryItem get(int row) { return items.get(row); }
+        public boolean contains(String id) { return rows.containsKey(id); }
+        
+        // The item's row, or -1 if there is no item with this id.
+        public int rowOf(String id) {
+            Integer row = rows.get(id);
+            return row == null ? -1 : row;
+        }
+        
+        // Returns the new item's row.
+        public int add(InventoryItem item) {
+            rows.put(item.getId(), items.size());
+            items.add(item);
+            return items.size() - 1;
+        }
         
-        public Object[] toRowData() {
-            return new Object[] {id, name, quantity, price};
+        // Returns the row that was freed, or -1 if there is no item with this
+        // id. Unless it was the last row, the last item now sits in it.
+        public int remove(String id) {
+            Integer row = rows.remove(id);
+            if (row == null) {
+                return -1;
+            }
+            
+            InventoryItem last = items.remove(items.size() - 1);
+            if (row < items.size()) {
+                items.set(row, last);
+                rows.put(last.getId(), row);
+            }
+            return row;
         }
     }
     
-    private List<InventoryItem> inventory;
+    // Shows the store as it is, without copying it: each cell is read from
+    // its item when the table paints it, so only visible rows cost anything.
+    // Callers fire row events after changing the store.
+    private static class InventoryTableModel extends AbstractTableModel {
+        private static final String[] COLUMNS = {"ID", "Name", "Quantity", "Price"};
+        
+        private final InventoryStore inventory;
+        
+        public InventoryTableModel(InventoryStore inventory) {
+            this.inventory = inventory;
+        }
+        
+        @Override
+        public int getRowCount() { return inventory.size(); }
+        
+        @Override
+        public int getColumnCount() { return COLUMNS.length; }
+        
+        @Override
+        public String getColumnName(int column) { return COLUMNS[column]; }
+        
+        @Override
+        public Object getValueAt(int row, int column) {
+            InventoryItem item = inventory.get(row);
+            switch (column) {
+                case 0: return item.getId();
+                case 1: return item.getName();
+                case 2: return item.getQuantity();
+                default: return item.getPrice();
+            }
+        }
+    }
+    
+    private InventoryStore inventory;
     
     private JTable itemTable;
-    private DefaultTableModel tableModel;
+    private InventoryTableModel tableModel;
     
     private JTextField idField;
     private JTextField nameField;
@@ -49,7 +121,7 @@ public class InventoryManagementSystem extends JFrame {
     private JButton clearButton;
     
     public InventoryManagementSystem() {
-        inventory = new ArrayList<>();
+        inventory = new InventoryStore();
         
         setTitle("Inventory Management System");
         setSize(800, 600);
@@ -64,13 +136,7 @@ public class InventoryManagementSystem extends JFrame {
     }
     
     private void initializeComponents() {
-        String[] columns = {"ID", "Name", "Quantity", "Price"};
-        tableModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        tableModel = new InventoryTableModel(inventory);
         
         itemTable = new JTable(tableModel);
         itemTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
@@ -146,11 +212,11 @@ public class InventoryManagementSystem extends JFrame {
         
         itemTable.getSelectionModel().addListSelectionListener(e -> {
             if (!e.getValueIsAdjusting() && itemTable.getSelectedRow() != -1) {
-                int selectedRow = itemTable.getSelectedRow();
-                idField.setText(tableModel.getValueAt(selectedRow, 0).toString());
-                nameField.setText(tableModel.getValueAt(selectedRow, 1).toString());
-                quantityField.setText(tableModel.getValueAt(selectedRow, 2).toString());
-                priceField.setText(tableModel.getValueAt(selectedRow, 3).toString());
+                InventoryItem item = inventory.get(itemTable.getSelectedRow());
+                idField.setText(item.getId());
+                nameField.setText(item.getName());
+                quantityField.setText(String.valueOf(item.getQuantity()));
+                priceField.setText(String.valueOf(item.getPrice()));
                 
                 idField.setEditable(false);
             }
@@ -177,16 +243,13 @@ public class InventoryManagementSystem extends JFrame {
                 return;
             }
             
-            for (InventoryItem item : inventory) {
-                if (item.getId().equals(id)) {
-                    JOptionPane.showMessageDialog(this, "Item with this ID already exists!", "Duplicate ID", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
+            if (inventory.contains(id)) {
+                JOptionPane.showMessageDialog(this, "Item with this ID already exists!", "Duplicate ID", JOptionPane.ERROR_MESSAGE);
+                return;
             }
             
-            InventoryItem newItem = new InventoryItem(id, name, quantity, price);
-            inventory.add(newItem);
-            tableModel.addRow(newItem.toRowData());
+            int row = inventory.add(new InventoryItem(id, name, quantity, price));
+            tableModel.fireTableRowsInserted(row, row);
             
             clearForm();
             JOptionPane.showMessageDialog(this, "Item added successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
@@ -222,20 +285,16 @@ public class InventoryManagementSystem extends JFrame {
                 return;
             }
             
-            for (InventoryItem item : inventory) {
-                if (item.getId().equals(id)) {
-                    item.setName(name);
-                    item.setQuantity(quantity);
-                    item.setPrice(price);
-                    
-                    tableModel.setValueAt(name, selectedRow, 1);
-                    tableModel.setValueAt(quantity, selectedRow, 2);
-                    tableModel.setValueAt(price, selectedRow, 3);
-                    
-                    clearForm();
-                    JOptionPane.showMessageDialog(this, "Item updated successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
-                    return;
-                }
+            int row = inventory.rowOf(id);
+            if (row != -1) {
+                InventoryItem item = inventory.get(row);
+                item.setName(name);
+                item.setQuantity(quantity);
+                item.setPrice(price);
+                tableModel.fireTableRowsUpdated(row, row);
+                
+                clearForm();
+                JOptionPane.showMessageDialog(this, "Item updated successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
             }
         } catch (NumberFormatException ex) {
             JOptionPane.showMessageDialog(this, "Quantity and price must be numbers!", "Input Error", JOptionPane.ERROR_MESSAGE);
@@ -250,13 +309,19 @@ public class InventoryManagementSystem extends JFrame {
             return;
         }
         
-        String id = tableModel.getValueAt(selectedRow, 0).toString();
+        String id = inventory.get(selectedRow).getId();
         
         int confirm = JOptionPane.showConfirmDialog(this, "Are you sure you want to delete this item?", "Confirm Delete", JOptionPane.YES_NO_OPTION);
         
         if (confirm == JOptionPane.YES_OPTION) {
-            inventory.removeIf(item -> item.getId().equals(id));
-            tableModel.removeRow(selectedRow);
+            int row = inventory.remove(id);
+            // The last item moved into the freed row, so the table loses its
+            // last row and repaints the freed one.
+            int last = inventory.size();
+            tableModel.fireTableRowsDeleted(last, last);
+            if (row < last) {
+                tableModel.fireTableRowsUpdated(row, row);
+            }
             clearForm();
             JOptionPane.showMessageDialog(this, "Item deleted successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
         }